@@ -0,0 +1,134 @@
+package com.suyf.lib;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.drawable.Drawable;
+import android.os.Debug;
+import android.widget.ImageView.ScaleType;
+import java.io.File;
+
+/**
+ * Compares the single pass decode with the two pass one on a device, see {@link
+ * ImageRequestDecodeTest#singlePassIsComparedWithTwoPass()}. Run it off the main thread:
+ *
+ * <pre>
+ * DecodeBenchmark.Result[] results = DecodeBenchmark.run(file, 200, 200, ScaleType.CENTER_INSIDE,
+ *     20);
+ * </pre>
+ */
+public class DecodeBenchmark {
+
+  private static final ResponseListener NO_OP_LISTENER = new ResponseListener() {
+    @Override
+    public void onDrawableResponse(Drawable drawable) {
+    }
+
+    @Override
+    public void onBitmapResponse(Bitmap response) {
+    }
+
+    @Override
+    public void onErrorResponse(Exception error) {
+    }
+  };
+
+  /**
+   * The measurements of one decode mode.
+   */
+  public static class Result {
+
+    private final boolean mSinglePass;
+    private final double mAverageDecodeMs;
+    private final long mMaxHeapGrowthBytes;
+    private final int mWidth;
+    private final int mHeight;
+
+    Result(boolean singlePass, double averageDecodeMs, long maxHeapGrowthBytes, int width,
+        int height) {
+      mSinglePass = singlePass;
+      mAverageDecodeMs = averageDecodeMs;
+      mMaxHeapGrowthBytes = maxHeapGrowthBytes;
+      mWidth = width;
+      mHeight = height;
+    }
+
+    public boolean isSinglePass() {
+      return mSinglePass;
+    }
+
+    public double getAverageDecodeMs() {
+      return mAverageDecodeMs;
+    }
+
+    /**
+     * Returns the largest growth of the Java and native heaps across a decode, measured once the
+     * decode returned. Buffers the decoder freed before that are not included.
+     */
+    public long getMaxHeapGrowthBytes() {
+      return mMaxHeapGrowthBytes;
+    }
+
+    public int getWidth() {
+      return mWidth;
+    }
+
+    public int getHeight() {
+      return mHeight;
+    }
+
+    @Override
+    public String toString() {
+      return (mSinglePass ? "single pass" : "two pass") + ": " + mWidth + "x" + mHeight + ", "
+          + mAverageDecodeMs + " ms, +" + (mMaxHeapGrowthBytes / 1024) + " KB";
+    }
+  }
+
+  /**
+   * Decodes the file the given number of times in each mode, without a bitmap pool so that every
+   * decode allocates.
+   *
+   * @return The two pass result first, then the single pass one. Null if the file can't be
+   * decoded.
+   */
+  public static Result[] run(File file, int maxWidth, int maxHeight, ScaleType scaleType,
+      int iterations) {
+    Result twoPass = measure(file, maxWidth, maxHeight, scaleType, iterations, false);
+    Result singlePass = measure(file, maxWidth, maxHeight, scaleType, iterations, true);
+    if (twoPass == null || singlePass == null) {
+      return null;
+    }
+    return new Result[]{twoPass, singlePass};
+  }
+
+  private static Result measure(File file, int maxWidth, int maxHeight, ScaleType scaleType,
+      int iterations, boolean singlePass) {
+    ImageRequest request = new ImageRequest(file.getPath(), NO_OP_LISTENER, maxWidth, maxHeight,
+        scaleType, Config.RGB_565, /* bitmapPool= */ null);
+    request.setSinglePassDecode(singlePass);
+    long totalNanos = 0;
+    long maxHeapGrowth = 0;
+    int width = 0;
+    int height = 0;
+    for (int i = 0; i < iterations; i++) {
+      System.gc();
+      long heapBefore = getUsedHeapBytes();
+      long start = System.nanoTime();
+      Bitmap bitmap = request.parseNetworkResponse(file);
+      totalNanos += System.nanoTime() - start;
+      if (bitmap == null) {
+        return null;
+      }
+      maxHeapGrowth = Math.max(maxHeapGrowth, getUsedHeapBytes() - heapBefore);
+      width = bitmap.getWidth();
+      height = bitmap.getHeight();
+      bitmap.recycle();
+    }
+    return new Result(singlePass, totalNanos / 1e6 / Math.max(1, iterations), maxHeapGrowth, width,
+        height);
+  }
+
+  private static long getUsedHeapBytes() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+  }
+}
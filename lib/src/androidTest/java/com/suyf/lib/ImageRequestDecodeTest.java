@@ -0,0 +1,99 @@
+package com.suyf.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Bitmap.Config;
+import android.graphics.drawable.Drawable;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.widget.ImageView.ScaleType;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class ImageRequestDecodeTest {
+
+  private static final String TAG = "ImageRequestDecodeTest";
+
+  private static final ResponseListener NO_OP_LISTENER = new ResponseListener() {
+    @Override
+    public void onDrawableResponse(Drawable drawable) {
+    }
+
+    @Override
+    public void onBitmapResponse(Bitmap response) {
+    }
+
+    @Override
+    public void onErrorResponse(Exception error) {
+    }
+  };
+
+  private File mFile;
+
+  @Before
+  public void setUp() throws IOException {
+    // Sampled by 2 to 500x250, then scaled to fit 300x300.
+    mFile = File.createTempFile("decode", ".png");
+    Bitmap source = Bitmap.createBitmap(1000, 500, Config.ARGB_8888);
+    FileOutputStream outputStream = new FileOutputStream(mFile);
+    try {
+      source.compress(CompressFormat.PNG, 100, outputStream);
+    } finally {
+      outputStream.close();
+      source.recycle();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    mFile.delete();
+  }
+
+  @Test
+  public void singlePassDecodesToTargetSizeAtDeviceDensity() {
+    Bitmap bitmap = decode(/* singlePass= */ true);
+
+    assertNotNull(bitmap);
+    assertEquals(300, bitmap.getWidth());
+    assertEquals(150, bitmap.getHeight());
+    assertEquals(Resources.getSystem().getDisplayMetrics().densityDpi, bitmap.getDensity());
+  }
+
+  @Test
+  public void singlePassMatchesTwoPass() {
+    Bitmap singlePass = decode(/* singlePass= */ true);
+    Bitmap twoPass = decode(/* singlePass= */ false);
+
+    assertEquals(twoPass.getWidth(), singlePass.getWidth());
+    assertEquals(twoPass.getHeight(), singlePass.getHeight());
+    assertEquals(twoPass.getDensity(), singlePass.getDensity());
+  }
+
+  @Test
+  public void singlePassIsComparedWithTwoPass() {
+    DecodeBenchmark.Result[] results =
+        DecodeBenchmark.run(mFile, 300, 300, ScaleType.CENTER_INSIDE, /* iterations= */ 5);
+
+    assertNotNull(results);
+    for (DecodeBenchmark.Result result : results) {
+      Log.i(TAG, result.toString());
+    }
+  }
+
+  private Bitmap decode(boolean singlePass) {
+    ImageRequest request = new ImageRequest(mFile.getPath(), NO_OP_LISTENER, 300, 300,
+        ScaleType.CENTER_INSIDE, Config.RGB_565, /* bitmapPool= */ null);
+    request.setSinglePassDecode(singlePass);
+    return request.parseNetworkResponse(mFile);
+  }
+}
@@ -0,0 +1,30 @@
+package com.suyf.lib;
+
+import android.graphics.ImageDecoder;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.RequiresApi;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decodes animated WebPs through the platform {@link ImageDecoder}, which plays them since API 28.
+ * Older platforms show the first frame through {@link android.graphics.BitmapFactory}.
+ */
+@RequiresApi(28)
+public class AnimatedWebpDecoder implements DrawableDecoder {
+
+  @Override
+  public boolean handles(ImageFormat format, byte[] header, int length) {
+    return format == ImageFormat.ANIMATED_WEBP;
+  }
+
+  @Override
+  public Drawable decode(File file) throws IOException {
+    return ImageDecoder.decodeDrawable(ImageDecoder.createSource(file));
+  }
+
+  @Override
+  public void recycle(Drawable drawable) {
+    // Backed by native memory that is freed with the drawable.
+  }
+}
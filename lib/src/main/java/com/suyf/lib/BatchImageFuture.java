@@ -0,0 +1,149 @@
+package com.suyf.lib;
+
+import com.suyf.lib.ImageLoader.ImageContainer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The results of {@link ImageLoader#loadAll(List, int, int, android.widget.ImageView.ScaleType,
+ * Priority)}, done once every image is. The list holds the containers in the order of the urls,
+ * null for images that failed, see {@link #getFutures()} for their errors.
+ *
+ * <p>Call {@link #release()} once the bitmaps are no longer used.
+ */
+public class BatchImageFuture implements Future<List<ImageContainer>> {
+
+  private final List<ImageFuture> mFutures;
+  private final AtomicInteger mRemaining;
+  /**
+   * Listeners waiting for the whole batch, guarded by {@code this}.
+   */
+  private final List<Runnable> mListeners = new ArrayList<>();
+
+  BatchImageFuture(List<ImageFuture> futures) {
+    mFutures = Collections.unmodifiableList(futures);
+    mRemaining = new AtomicInteger(futures.size());
+    Runnable countDown = new Runnable() {
+      @Override
+      public void run() {
+        if (mRemaining.decrementAndGet() == 0) {
+          onAllDone();
+        }
+      }
+    };
+    for (ImageFuture future : futures) {
+      future.addListener(countDown, ImageFuture.DIRECT_EXECUTOR);
+    }
+  }
+
+  public List<ImageFuture> getFutures() {
+    return mFutures;
+  }
+
+  /**
+   * Runs {@code listener} on {@code executor} once every image is done, right away if they are.
+   */
+  public void addListener(final Runnable listener, final Executor executor) {
+    Runnable runnable = new Runnable() {
+      @Override
+      public void run() {
+        executor.execute(listener);
+      }
+    };
+    synchronized (this) {
+      if (mRemaining.get() > 0) {
+        mListeners.add(runnable);
+        return;
+      }
+    }
+    runnable.run();
+  }
+
+  /**
+   * Lets go of every bitmap, canceling the loads that still run.
+   */
+  public void release() {
+    for (ImageFuture future : mFutures) {
+      future.release();
+    }
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    boolean canceled = false;
+    for (ImageFuture future : mFutures) {
+      canceled |= future.cancel(mayInterruptIfRunning);
+    }
+    return canceled;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    for (ImageFuture future : mFutures) {
+      if (future.isCancelled()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean isDone() {
+    return mRemaining.get() == 0;
+  }
+
+  /**
+   * Waits for every image. Must not be called on the main thread.
+   */
+  @Override
+  public List<ImageContainer> get() throws InterruptedException, ExecutionException {
+    ImageFuture.checkNotMainThread();
+    List<ImageContainer> results = new ArrayList<>(mFutures.size());
+    for (ImageFuture future : mFutures) {
+      try {
+        results.add(future.get());
+      } catch (ExecutionException e) {
+        results.add(null);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Waits at most the given time for every image. Must not be called on the main thread.
+   */
+  @Override
+  public List<ImageContainer> get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    ImageFuture.checkNotMainThread();
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    List<ImageContainer> results = new ArrayList<>(mFutures.size());
+    for (ImageFuture future : mFutures) {
+      try {
+        results.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+      } catch (ExecutionException e) {
+        results.add(null);
+      }
+    }
+    return results;
+  }
+
+  private void onAllDone() {
+    List<Runnable> listeners;
+    synchronized (this) {
+      listeners = new ArrayList<>(mListeners);
+      mListeners.clear();
+    }
+    for (Runnable listener : listeners) {
+      listener.run();
+    }
+  }
+}
@@ -2,115 +2,347 @@ package com.suyf.lib;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
-import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
 import android.util.LruCache;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.WeakHashMap;
 
 public class BitmapCache implements ImageLoader.ImageCache {
 
-  // 内存缓存
-  private LruCache<String, Bitmap> mMemoryCache;
-  private ImageFileCache mImageFileCache;
+  private static final String DRAWABLE_KEY_PREFIX = "drawable_";
+  private static final long DEFAULT_DISK_CACHE_SIZE = 50 * 1024 * 1024;
+  private static final int MAX_PENDING_WRITES = 32;
+
+  // 内存缓存, bitmap与动图共用一个字节预算.
+  // 动图的key为 DRAWABLE_KEY_PREFIX + url
+  private LruCache<String, Object> mMemoryCache;
+  // 磁盘缓存
+  private DiskLruCache mDiskCache;
+  private WriteBehindQueue mWriteQueue;
+  // url -> 内存中该url各尺寸的key, 以及反向索引, 由 mVariantLock 保护
+  private final HashMap<String, List<String>> mVariantKeys = new HashMap<>();
+  private final HashMap<String, String> mVariantUrls = new HashMap<>();
+  private final Object mVariantLock = new Object();
+  // 复用池, LRU淘汰的bitmap在没有view显示时放入
+  private BitmapPool mBitmapPool;
+  // 正在显示的bitmap的引用计数, 以及已被淘汰但仍在显示的bitmap,
+  // 由 mAcquired 保护.
+  // 弱引用: 从不释放的bitmap不会因此泄漏
+  private final WeakHashMap<Bitmap, Integer> mAcquired = new WeakHashMap<>();
+  private final WeakHashMap<Bitmap, Boolean> mEvictedInUse = new WeakHashMap<>();
+  // 正在显示的动图, 多个view共用一个实例. 由自身保护
+  private final WeakHashMap<Drawable, SharedDrawable> mSharedDrawables = new WeakHashMap<>();
 
   public BitmapCache(Context context) {
+    this(context, DEFAULT_DISK_CACHE_SIZE);
+  }
+
+  /**
+   * @param diskCacheSize The maximum number of bytes the disk cache may use.
+   */
+  public BitmapCache(Context context, long diskCacheSize) {
     // Get the Max available memory
     int maxMemory = (int) (Runtime.getRuntime().maxMemory());
     int cacheSize = maxMemory / 8;
     mMemoryCache =
-        new LruCache<String, Bitmap>(cacheSize) {
+        new LruCache<String, Object>(cacheSize) {
           @Override
-          protected int sizeOf(String key, Bitmap bitmap) {
-            return bitmap.getRowBytes() * bitmap.getHeight();
+          protected int sizeOf(String key, Object value) {
+            if (value instanceof Bitmap) {
+              // pooled bitmaps may be larger than the image they hold, count the whole allocation.
+              return BitmapPool.getSize((Bitmap) value);
+            }
+            return (int) Math.min(Integer.MAX_VALUE,
+                DecoderRegistry.getByteCount((Drawable) value));
+          }
+
+          @Override
+          protected void entryRemoved(boolean evicted, String key, Object oldValue,
+              Object newValue) {
+            if (oldValue == newValue) {
+              return;
+            }
+            if (oldValue instanceof Bitmap) {
+              removeVariant(key);
+              recycleToPool((Bitmap) oldValue);
+            } else {
+              recycleDrawable((Drawable) oldValue);
+            }
           }
         };
-    mImageFileCache = new ImageFileCache(context, "images");
+    mBitmapPool = new BitmapPool(maxMemory / 16);
+    File cacheDir = new File(new File(context.getCacheDir(), "ImageFile"), "images");
+    mDiskCache = new DiskLruCache(cacheDir, diskCacheSize);
+    mWriteQueue = new WriteBehindQueue(MAX_PENDING_WRITES);
   }
 
   @Override
   public Bitmap getBitmap(String url) {
-    Bitmap bitmap = mMemoryCache.get(url);
-    if (bitmap == null) {
-      return getBitmapFromFile(url);
-    }
-    return bitmap;
+    // decoded bitmaps only live in memory, the disk keeps the original bytes of each url.
+    return getMemoryBitmap(url);
   }
 
   @Override
   public void putBitmap(String url, Bitmap bitmap) {
-    if (getBitmap(url) == null) {
-      mMemoryCache.put(url, bitmap);
-      File imageFile = mImageFileCache.getFile(url);
-      try {
-        //save bitmap
-        bitmap.compress(CompressFormat.JPEG, 100, new FileOutputStream(imageFile));
-      } catch (FileNotFoundException e) {
-        e.printStackTrace();
-      }
-    }
-  }
-
-  @Override
-  public byte[] getFile(String url) {
-    byte[] bytes = null;
-    File imageFile = mImageFileCache.getFile("file_" + url);
-    if (imageFile == null || !imageFile.exists()) {
-      return null;
-    }
-    FileInputStream inputStream = null;
-    try {
-      inputStream = new FileInputStream(imageFile);
-      bytes = new byte[inputStream.available()];
-      inputStream.read(bytes, 0, inputStream.available());
-    } catch (Exception e) {
-      e.printStackTrace();
-    } finally {
-      try {
-        if (inputStream != null) {
-          inputStream.close();
-        }
-      } catch (IOException e) {
-        e.printStackTrace();
+    mMemoryCache.put(url, bitmap);
+  }
+
+  @Override
+  public void putVariant(String url, String key, Bitmap bitmap) {
+    mMemoryCache.put(key, bitmap);
+    synchronized (mVariantLock) {
+      List<String> keys = mVariantKeys.get(url);
+      if (keys == null) {
+        keys = new ArrayList<>(2);
+        mVariantKeys.put(url, keys);
+      }
+      if (!keys.contains(key)) {
+        keys.add(key);
       }
+      mVariantUrls.put(key, url);
     }
-    return bytes;
   }
 
   @Override
-  public void putFile(String url, byte[] bytes) {
-    if (bytes == null || bytes.length <= 0) {
-      return;
+  public List<Bitmap> getVariants(String url) {
+    List<String> keys;
+    synchronized (mVariantLock) {
+      keys = mVariantKeys.get(url);
+      if (keys == null) {
+        return new ArrayList<>(0);
+      }
+      keys = new ArrayList<>(keys);
     }
-    File imageFile = mImageFileCache.getFile("file_" + url);
-    FileOutputStream outputStream = null;
-    try {
-      imageFile.createNewFile();
-      outputStream = new FileOutputStream(imageFile);
-      outputStream.write(bytes, 0, bytes.length);
-      outputStream.flush();
-    } catch (Exception e) {
-      e.printStackTrace();
-    } finally {
-      try {
-        if (outputStream != null) {
-          outputStream.close();
+    List<Bitmap> variants = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      Bitmap bitmap = getMemoryBitmap(key);
+      if (bitmap != null) {
+        variants.add(bitmap);
+      }
+    }
+    return variants;
+  }
+
+  private void removeVariant(String key) {
+    synchronized (mVariantLock) {
+      String url = mVariantUrls.remove(key);
+      if (url == null) {
+        return;
+      }
+      List<String> keys = mVariantKeys.get(url);
+      if (keys != null) {
+        keys.remove(key);
+        if (keys.isEmpty()) {
+          mVariantKeys.remove(url);
         }
-      } catch (Exception e) {
-        e.printStackTrace();
       }
     }
   }
 
-  private Bitmap getBitmapFromFile(String url) {
-    File imageFile = mImageFileCache.getFile(url);
-    if (imageFile.exists()) {
-      return BitmapFactory.decodeFile(imageFile.getAbsolutePath());
+  @Override
+  public List<Bitmap> getAndAcquireVariants(String url) {
+    List<String> keys;
+    synchronized (mVariantLock) {
+      keys = mVariantKeys.get(url);
+      if (keys == null) {
+        return new ArrayList<>(0);
+      }
+      keys = new ArrayList<>(keys);
+    }
+    List<Bitmap> variants = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      Bitmap bitmap = getAndAcquireBitmap(key);
+      if (bitmap != null) {
+        variants.add(bitmap);
+      }
     }
-    return null;
+    return variants;
   }
 
+  @Override
+  public Bitmap getAndAcquireBitmap(String url) {
+    // an eviction pools the bitmap under the same lock, so it either misses or sees the acquire.
+    synchronized (mAcquired) {
+      Bitmap bitmap = getMemoryBitmap(url);
+      if (bitmap != null) {
+        Integer count = mAcquired.get(bitmap);
+        mAcquired.put(bitmap, count == null ? 1 : count + 1);
+      }
+      return bitmap;
+    }
+  }
+
+  @Override
+  public void acquireBitmap(Bitmap bitmap) {
+    synchronized (mAcquired) {
+      Integer count = mAcquired.get(bitmap);
+      mAcquired.put(bitmap, count == null ? 1 : count + 1);
+    }
+  }
+
+  @Override
+  public void releaseBitmap(Bitmap bitmap) {
+    synchronized (mAcquired) {
+      Integer count = mAcquired.get(bitmap);
+      if (count == null) {
+        return;
+      }
+      if (count > 1) {
+        mAcquired.put(bitmap, count - 1);
+        return;
+      }
+      mAcquired.remove(bitmap);
+      if (mEvictedInUse.remove(bitmap) == null) {
+        return;
+      }
+    }
+    // It was evicted while displayed and the last view let go of it.
+    mBitmapPool.put(bitmap);
+  }
+
+  @Override
+  public BitmapPool getBitmapPool() {
+    return mBitmapPool;
+  }
+
+  private void recycleToPool(Bitmap bitmap) {
+    synchronized (mAcquired) {
+      if (mAcquired.containsKey(bitmap)) {
+        // still displayed, pool it once it is released.
+        mEvictedInUse.put(bitmap, Boolean.TRUE);
+        return;
+      }
+    }
+    mBitmapPool.put(bitmap);
+  }
+
+  @Override
+  public Bitmap getMemoryBitmap(String url) {
+    Object value = mMemoryCache.get(url);
+    return value instanceof Bitmap ? (Bitmap) value : null;
+  }
+
+  @Override
+  public Drawable getMemoryDrawable(String url) {
+    return (Drawable) mMemoryCache.get(DRAWABLE_KEY_PREFIX + url);
+  }
+
+  @Override
+  public void putDrawable(String url, Drawable drawable) {
+    if (drawable != null) {
+      mMemoryCache.put(DRAWABLE_KEY_PREFIX + url, drawable);
+    }
+  }
+
+  @Override
+  public Drawable getAndAcquireDrawable(String url) {
+    // an eviction recycles the drawable under the same lock, so it either misses or sees the hold.
+    synchronized (mSharedDrawables) {
+      Drawable drawable = getMemoryDrawable(url);
+      if (drawable != null) {
+        acquireDrawable(drawable);
+      }
+      return drawable;
+    }
+  }
+
+  @Override
+  public void acquireDrawable(Drawable drawable) {
+    synchronized (mSharedDrawables) {
+      SharedDrawable shared = mSharedDrawables.get(drawable);
+      if (shared == null) {
+        shared = new SharedDrawable();
+        mSharedDrawables.put(drawable, shared);
+      }
+      shared.mCount++;
+    }
+  }
+
+  @Override
+  public void attachDrawable(Drawable drawable, Drawable.Callback view) {
+    SharedDrawableCallback callback;
+    synchronized (mSharedDrawables) {
+      SharedDrawable shared = mSharedDrawables.get(drawable);
+      if (shared == null) {
+        return;
+      }
+      shared.mCallback.addCallback(view);
+      callback = shared.mCallback;
+    }
+    drawable.setCallback(callback);
+  }
+
+  @Override
+  public void releaseDrawable(Drawable drawable, Drawable.Callback view) {
+    boolean recycle = false;
+    synchronized (mSharedDrawables) {
+      SharedDrawable shared = mSharedDrawables.get(drawable);
+      if (shared == null) {
+        return;
+      }
+      if (view != null) {
+        shared.mCallback.removeCallback(view);
+      }
+      if (--shared.mCount <= 0) {
+        mSharedDrawables.remove(drawable);
+        recycle = shared.mEvicted;
+      }
+    }
+    if (recycle) {
+      // It was evicted while displayed and the last view let go of it.
+      DecoderRegistry.recycle(drawable);
+    }
+  }
+
+  private void recycleDrawable(Drawable drawable) {
+    synchronized (mSharedDrawables) {
+      SharedDrawable shared = mSharedDrawables.get(drawable);
+      if (shared != null) {
+        // still displayed, recycle it once it is released.
+        shared.mEvicted = true;
+        return;
+      }
+    }
+    DecoderRegistry.recycle(drawable);
+  }
+
+  @Override
+  public File getFile(String url) {
+    return mDiskCache.get("file_" + url);
+  }
+
+  @Override
+  public DiskLruCache.Editor editFile(String url) throws IOException {
+    return mDiskCache.edit("file_" + url);
+  }
+
+  @Override
+  public void commitFile(String url, DiskLruCache.Editor editor) {
+    mWriteQueue.enqueue("file_" + url, editor);
+  }
+
+  /**
+   * Drops the disk writes that have not started yet, e.g. when the system is low on memory.
+   */
+  public void clearPendingWrites() {
+    mWriteQueue.clear();
+  }
+
+  public WriteBehindQueue getWriteQueue() {
+    return mWriteQueue;
+  }
+
+  /**
+   * The holds on one animated drawable and the views it animates in.
+   */
+  private static class SharedDrawable {
+
+    private final SharedDrawableCallback mCallback = new SharedDrawableCallback();
+    private int mCount;
+    private boolean mEvicted;
+  }
 }
@@ -0,0 +1,173 @@
+package com.suyf.lib;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.os.Build;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps mutable bitmaps that are no longer displayed so that decodes can reuse them through
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} instead of allocating.
+ *
+ * <p>Bitmaps are bucketed by their allocation size. From KitKat any bitmap large enough can be
+ * reused, before that the width, height and config must match exactly and the decode must not be
+ * sampled. The pool has its own byte budget and drops the least recently pooled bitmaps first.
+ */
+public class BitmapPool {
+
+  /**
+   * Don't hand out a bitmap that is more than this many times larger than needed.
+   */
+  private static final int MAX_SIZE_MULTIPLE = 4;
+
+  private final long mMaxSize;
+  /**
+   * Allocation size -> pooled bitmaps of that size, guarded by {@code this}.
+   */
+  private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets = new TreeMap<>();
+  /**
+   * Every pooled bitmap, least recently pooled first.
+   */
+  private final LinkedList<Bitmap> mLru = new LinkedList<>();
+  private final AtomicInteger mHitCount = new AtomicInteger();
+  private final AtomicInteger mMissCount = new AtomicInteger();
+  private long mSize;
+
+  /**
+   * @param maxSize The maximum number of bytes of pooled bitmaps.
+   */
+  public BitmapPool(long maxSize) {
+    mMaxSize = maxSize;
+  }
+
+  /**
+   * Returns a bitmap that a decode of {@code width} x {@code height} at {@code config} can be
+   * written into, or null. The pixels are not cleared, the decoder overwrites all of them.
+   *
+   * @param sampleSize The inSampleSize of the decode, reuse needs 1 before KitKat.
+   */
+  public synchronized Bitmap get(int width, int height, Config config, int sampleSize) {
+    Bitmap bitmap = null;
+    int size = width * height * getBytesPerPixel(config);
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      Map.Entry<Integer, LinkedList<Bitmap>> bucket = mBuckets.ceilingEntry(size);
+      if (bucket != null && bucket.getKey() <= size * MAX_SIZE_MULTIPLE) {
+        bitmap = bucket.getValue().removeFirst();
+      }
+    } else if (sampleSize <= 1) {
+      LinkedList<Bitmap> bucket = mBuckets.get(size);
+      if (bucket != null) {
+        Iterator<Bitmap> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+          Bitmap candidate = iterator.next();
+          if (candidate.getWidth() == width && candidate.getHeight() == height
+              && candidate.getConfig() == config) {
+            iterator.remove();
+            bitmap = candidate;
+            break;
+          }
+        }
+      }
+    }
+    if (bitmap == null) {
+      mMissCount.incrementAndGet();
+      return null;
+    }
+    mHitCount.incrementAndGet();
+    int bitmapSize = getSize(bitmap);
+    removeEmptyBucket(bitmapSize);
+    mLru.remove(bitmap);
+    mSize -= bitmapSize;
+    return bitmap;
+  }
+
+  /**
+   * Offers a bitmap nobody displays anymore to the pool. The caller must not touch it afterwards.
+   *
+   * @return false if the bitmap can't be reused, it was left alone in that case.
+   */
+  public synchronized boolean put(Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+      return false;
+    }
+    int size = getSize(bitmap);
+    if (size > mMaxSize / 2 || mLru.contains(bitmap)) {
+      return false;
+    }
+    LinkedList<Bitmap> bucket = mBuckets.get(size);
+    if (bucket == null) {
+      bucket = new LinkedList<>();
+      mBuckets.put(size, bucket);
+    }
+    bucket.addLast(bitmap);
+    mLru.addLast(bitmap);
+    mSize += size;
+    trimToSize(mMaxSize);
+    return true;
+  }
+
+  /**
+   * Drops every pooled bitmap.
+   */
+  public synchronized void clear() {
+    trimToSize(0);
+  }
+
+  public synchronized long size() {
+    return mSize;
+  }
+
+  public long getMaxSize() {
+    return mMaxSize;
+  }
+
+  public int getHitCount() {
+    return mHitCount.get();
+  }
+
+  public int getMissCount() {
+    return mMissCount.get();
+  }
+
+  private void trimToSize(long maxSize) {
+    while (mSize > maxSize && !mLru.isEmpty()) {
+      Bitmap bitmap = mLru.removeFirst();
+      int size = getSize(bitmap);
+      LinkedList<Bitmap> bucket = mBuckets.get(size);
+      if (bucket != null) {
+        bucket.remove(bitmap);
+        removeEmptyBucket(size);
+      }
+      mSize -= size;
+      bitmap.recycle();
+    }
+  }
+
+  private void removeEmptyBucket(int size) {
+    LinkedList<Bitmap> bucket = mBuckets.get(size);
+    if (bucket != null && bucket.isEmpty()) {
+      mBuckets.remove(size);
+    }
+  }
+
+  static int getSize(Bitmap bitmap) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      return bitmap.getAllocationByteCount();
+    }
+    return bitmap.getRowBytes() * bitmap.getHeight();
+  }
+
+  static int getBytesPerPixel(Config config) {
+    if (config == Config.ALPHA_8) {
+      return 1;
+    }
+    if (config == Config.RGB_565 || config == Config.ARGB_4444) {
+      return 2;
+    }
+    return 4;
+  }
+}
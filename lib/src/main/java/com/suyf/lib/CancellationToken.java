@@ -0,0 +1,29 @@
+package com.suyf.lib;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Shared between whoever waits for a piece of work and the steps doing it. The steps check it
+ * before each expensive step and stop once it is canceled.
+ */
+public class CancellationToken {
+
+  private volatile boolean mCanceled;
+
+  public void cancel() {
+    mCanceled = true;
+  }
+
+  public boolean isCanceled() {
+    return mCanceled;
+  }
+
+  /**
+   * @throws CancellationException if the token was canceled.
+   */
+  public void throwIfCanceled() {
+    if (mCanceled) {
+      throw new CancellationException();
+    }
+  }
+}
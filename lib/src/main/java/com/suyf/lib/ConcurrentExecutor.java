@@ -1,31 +1,71 @@
 package com.suyf.lib;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * The executors of the load pipeline, one per stage so that each can be sized for its work:
+ * <ul>
+ * <li>{@link #getCacheExecutor()} probes the disk cache.</li>
+ * <li>{@link #get()} downloads, unless downloads go through OkHttp's dispatcher.</li>
+ * <li>{@link #getDecodeExecutor()} decodes and scales, sized by the CPU count.</li>
+ * <li>The {@link WriteBehindQueue} of the cache commits downloads to disk on its own thread, see
+ * {@link BitmapCache#getWriteQueue()}.</li>
+ * </ul>
+ */
 public class ConcurrentExecutor {
 
   private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
   private static final int MAXIMUM_POOL_SIZE = CPU_COUNT * 2 + 1;
+  private static final int MAXIMUM_QUEUED = 128;
+  private static final int CACHE_POOL_SIZE = 2;
 
-  private static ExecutorService sExecutorService;
+  private static PriorityExecutor sExecutorService;
+  private static PriorityExecutor sCacheExecutor;
+  private static PriorityExecutor sDecodeExecutor;
+  private static final LatencyHistogram sAsyncFetchTimes = new LatencyHistogram();
 
-  public synchronized static ExecutorService get() {
+  /**
+   * Returns the pool for blocking network reads.
+   */
+  public synchronized static PriorityExecutor get() {
     if (sExecutorService == null) {
-      sExecutorService = new ThreadPoolExecutor(0,
-          MAXIMUM_POOL_SIZE,
-          60L,
-          TimeUnit.SECONDS,
-          new LinkedBlockingQueue<Runnable>(128),
+      sExecutorService = new PriorityExecutor(MAXIMUM_POOL_SIZE, MAXIMUM_QUEUED,
           create("lib_thread", false));
     }
     return sExecutorService;
   }
 
+  /**
+   * Returns the pool for disk cache lookups.
+   */
+  public synchronized static PriorityExecutor getCacheExecutor() {
+    if (sCacheExecutor == null) {
+      sCacheExecutor = new PriorityExecutor(CACHE_POOL_SIZE, MAXIMUM_QUEUED,
+          create("lib_cache", false));
+    }
+    return sCacheExecutor;
+  }
+
+  /**
+   * Returns the pool for decoding and scaling, sized for CPU work.
+   */
+  public synchronized static PriorityExecutor getDecodeExecutor() {
+    if (sDecodeExecutor == null) {
+      sDecodeExecutor = new PriorityExecutor(CPU_COUNT, MAXIMUM_QUEUED,
+          create("lib_decode", false));
+    }
+    return sDecodeExecutor;
+  }
+
+  /**
+   * Returns how long downloads through OkHttp's dispatcher took, from being enqueued until the body
+   * was on disk. They don't run on {@link #get()}, its histograms only cover blocking downloads.
+   */
+  public static LatencyHistogram getAsyncFetchTimes() {
+    return sAsyncFetchTimes;
+  }
+
   static ThreadFactory create(final String name, final boolean daemon) {
     return new ThreadFactory() {
       private final AtomicInteger mCount = new AtomicInteger(1);
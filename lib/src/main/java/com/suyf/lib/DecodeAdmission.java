@@ -0,0 +1,79 @@
+package com.suyf.lib;
+
+import java.util.LinkedList;
+
+/**
+ * Admits decodes while the bitmaps they allocate fit in a byte budget, so small decodes run in
+ * parallel and only large ones are serialized. A decode larger than the whole budget runs alone.
+ * Decodes are admitted in arrival order, a large decode is not starved by a stream of small ones.
+ */
+public class DecodeAdmission {
+
+  private static DecodeAdmission sDecodeAdmission;
+
+  private final LinkedList<Object> mWaiters = new LinkedList<>();
+  private long mMaxBytes;
+  private long mBytesInUse;
+  private int mRunningCount;
+
+  public synchronized static DecodeAdmission get() {
+    if (sDecodeAdmission == null) {
+      sDecodeAdmission = new DecodeAdmission(Runtime.getRuntime().maxMemory() / 8);
+    }
+    return sDecodeAdmission;
+  }
+
+  /**
+   * @param maxBytes The number of bytes running decodes may allocate together.
+   */
+  public DecodeAdmission(long maxBytes) {
+    mMaxBytes = maxBytes;
+  }
+
+  public synchronized void setMaxBytes(long maxBytes) {
+    mMaxBytes = maxBytes;
+    notifyAll();
+  }
+
+  /**
+   * Blocks until a decode allocating {@code bytes} may run. Every successful call must be paired
+   * with a {@link #release(long)} of the same amount.
+   */
+  public synchronized void acquire(long bytes) throws InterruptedException {
+    Object waiter = new Object();
+    mWaiters.addLast(waiter);
+    try {
+      while (mWaiters.getFirst() != waiter
+          || (mRunningCount > 0 && mBytesInUse + bytes > mMaxBytes)) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      mWaiters.remove(waiter);
+      notifyAll();
+      throw e;
+    }
+    mWaiters.removeFirst();
+    mBytesInUse += bytes;
+    mRunningCount++;
+    // The next waiter may fit as well.
+    notifyAll();
+  }
+
+  public synchronized void release(long bytes) {
+    mBytesInUse -= bytes;
+    mRunningCount--;
+    notifyAll();
+  }
+
+  public synchronized long getBytesInUse() {
+    return mBytesInUse;
+  }
+
+  public synchronized int getRunningCount() {
+    return mRunningCount;
+  }
+
+  public synchronized int getWaitingCount() {
+    return mWaiters.size();
+  }
+}
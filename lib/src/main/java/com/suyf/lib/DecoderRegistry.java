@@ -0,0 +1,138 @@
+package com.suyf.lib;
+
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Picks the decoder for an image from its first bytes, so that a JPEG is never handed to the GIF
+ * decoder just to see it fail. Apps can add decoders for their own formats through {@link
+ * #register(DrawableDecoder)}.
+ */
+public class DecoderRegistry {
+
+  /**
+   * Whether android-gif-drawable is on the class path, checked once. It is an optional dependency.
+   */
+  private static final boolean GIF_SUPPORTED = findGifLibrary();
+
+  private static DecoderRegistry sInstance;
+
+  private final CopyOnWriteArrayList<DrawableDecoder> mDecoders = new CopyOnWriteArrayList<>();
+
+  public synchronized static DecoderRegistry get() {
+    if (sInstance == null) {
+      sInstance = new DecoderRegistry();
+    }
+    return sInstance;
+  }
+
+  private DecoderRegistry() {
+    if (GIF_SUPPORTED) {
+      mDecoders.add(new GifDecoder());
+    }
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+      mDecoders.add(new AnimatedWebpDecoder());
+    }
+  }
+
+  public static boolean isGifSupported() {
+    return GIF_SUPPORTED;
+  }
+
+  /**
+   * Adds a decoder. It is asked before the decoders registered earlier, so it can take over a
+   * format from a built-in one.
+   */
+  public void register(DrawableDecoder decoder) {
+    mDecoders.add(0, decoder);
+  }
+
+  public void unregister(DrawableDecoder decoder) {
+    mDecoders.remove(decoder);
+  }
+
+  /**
+   * Returns the decoder for the image, or null if it is to be decoded as a bitmap.
+   */
+  DrawableDecoder find(File file) {
+    if (mDecoders.isEmpty()) {
+      return null;
+    }
+    byte[] header = new byte[ImageFormat.HEADER_LENGTH];
+    int length = readHeader(file, header);
+    ImageFormat format = ImageFormat.sniff(header, length);
+    for (DrawableDecoder decoder : mDecoders) {
+      if (decoder.handles(format, header, length)) {
+        return decoder;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the memory held by a decoded drawable, estimated from its size if its decoder is not
+   * known.
+   */
+  static long getByteCount(Drawable drawable) {
+    if (drawable instanceof TiledDrawable) {
+      return ((TiledDrawable) drawable).getByteCount();
+    }
+    if (GIF_SUPPORTED) {
+      long byteCount = GifDecoder.getByteCount(drawable);
+      if (byteCount >= 0) {
+        return byteCount;
+      }
+    }
+    return (long) Math.max(1, drawable.getIntrinsicWidth())
+        * Math.max(1, drawable.getIntrinsicHeight()) * 4;
+  }
+
+  /**
+   * Frees a decoded drawable no one shows anymore. Drawables without native buffers are left to
+   * the garbage collector.
+   */
+  static void recycle(Drawable drawable) {
+    if (drawable instanceof TiledDrawable) {
+      ((TiledDrawable) drawable).recycle();
+      return;
+    }
+    if (drawable instanceof Animatable) {
+      ((Animatable) drawable).stop();
+    }
+    if (GIF_SUPPORTED) {
+      GifDecoder.recycleIfGif(drawable);
+    }
+  }
+
+  private static int readHeader(File file, byte[] header) {
+    FileInputStream inputStream = null;
+    try {
+      inputStream = new FileInputStream(file);
+      int length = 0;
+      int read;
+      while (length < header.length
+          && (read = inputStream.read(header, length, header.length - length)) != -1) {
+        length += read;
+      }
+      return length;
+    } catch (IOException e) {
+      return 0;
+    } finally {
+      DiskLruCache.closeQuietly(inputStream);
+    }
+  }
+
+  private static boolean findGifLibrary() {
+    try {
+      Class.forName("pl.droidsonroids.gif.GifDrawable");
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,533 @@
+package com.suyf.lib;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of files on disk with a byte budget. Entries are kept in an in-memory LRU index, so
+ * lookups never touch the filesystem, and the index is rebuilt from an append-only journal when
+ * the cache is opened.
+ *
+ * <p>The journal looks like this:
+ * <pre>
+ *   com.suyf.lib.DiskLruCache
+ *   1
+ *
+ *   CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832
+ *   READ 3400330d1dfc7f3f7f4b8d4d803dfcf6
+ *   REMOVE 335c4c6028171cfddfbaae1a9c313c52
+ * </pre>
+ *
+ * <p>Entries are written to a temp file first and renamed into place on {@link Editor#commit()},
+ * so a reader never sees a partial file. Eviction and journal compaction run on a background
+ * thread.
+ */
+public class DiskLruCache {
+
+  private static final String JOURNAL_FILE = "journal";
+  private static final String JOURNAL_FILE_TEMP = "journal.tmp";
+  private static final String MAGIC = "com.suyf.lib.DiskLruCache";
+  private static final String VERSION = "1";
+  private static final String CLEAN = "CLEAN";
+  private static final String REMOVE = "REMOVE";
+  private static final String READ = "READ";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+  private final File mDirectory;
+  private final File mJournalFile;
+  private final long mMaxSize;
+  /**
+   * Access ordered index of the committed entries, least recently used first.
+   */
+  private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(0, 0.75f, true);
+  private final ExecutorService mCleanupExecutor = new ThreadPoolExecutor(0, 1, 60L,
+      TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+      ConcurrentExecutor.create("disk_lru", true));
+  private final Runnable mCleanupRunnable = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (DiskLruCache.this) {
+        trimToSize();
+        if (journalRebuildRequired()) {
+          rebuildJournal();
+        }
+      }
+    }
+  };
+  private final Runnable mInitializeRunnable = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (DiskLruCache.this) {
+        ensureInitialized();
+      }
+    }
+  };
+
+  private Writer mJournalWriter;
+  private boolean mInitialized;
+  private long mSize;
+  private int mRedundantOpCount;
+
+  /**
+   * Opens the cache in {@code directory}. The journal is read on a background thread, callers
+   * that arrive before it is done wait for it.
+   *
+   * @param directory a writable directory owned by this cache.
+   * @param maxSize the maximum number of bytes this cache should use to store its data.
+   */
+  public DiskLruCache(File directory, long maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    mDirectory = directory;
+    mJournalFile = new File(directory, JOURNAL_FILE);
+    mMaxSize = maxSize;
+    mCleanupExecutor.execute(mInitializeRunnable);
+  }
+
+  /**
+   * Returns the committed file for {@code key}, or null if it is not in the cache. The file may be
+   * evicted at any time afterwards, so readers must handle it disappearing.
+   */
+  public synchronized File get(String key) {
+    ensureInitialized();
+    Entry entry = mEntries.get(hashKey(key));
+    if (entry == null) {
+      return null;
+    }
+    mRedundantOpCount++;
+    journal(READ + ' ' + entry.mKey);
+    if (journalRebuildRequired()) {
+      mCleanupExecutor.execute(mCleanupRunnable);
+    }
+    return entry.getCleanFile();
+  }
+
+  /**
+   * Returns true if {@code key} is in the cache. Does not touch the filesystem and does not update
+   * the access order.
+   */
+  public synchronized boolean contains(String key) {
+    ensureInitialized();
+    return mEntries.containsKey(hashKey(key));
+  }
+
+  /**
+   * Returns an editor that writes a new value for {@code key}. Nothing is visible to readers until
+   * the editor is committed.
+   */
+  public Editor edit(String key) throws IOException {
+    synchronized (this) {
+      ensureInitialized();
+    }
+    String hashedKey = hashKey(key);
+    return new Editor(hashedKey, File.createTempFile(hashedKey, TEMP_SUFFIX, mDirectory));
+  }
+
+  /**
+   * Stores {@code bytes} under {@code key}.
+   *
+   * @return true if the value was committed.
+   */
+  public boolean put(String key, byte[] bytes) {
+    Editor editor = null;
+    OutputStream outputStream = null;
+    try {
+      editor = edit(key);
+      outputStream = editor.newOutputStream();
+      outputStream.write(bytes, 0, bytes.length);
+      outputStream.close();
+      outputStream = null;
+      editor.commit();
+      return true;
+    } catch (IOException e) {
+      e.printStackTrace();
+      if (editor != null) {
+        editor.abort();
+      }
+      return false;
+    } finally {
+      closeQuietly(outputStream);
+    }
+  }
+
+  /**
+   * Drops the entry for {@code key} if it exists.
+   *
+   * @return true if an entry was removed.
+   */
+  public synchronized boolean remove(String key) {
+    ensureInitialized();
+    Entry entry = mEntries.get(hashKey(key));
+    if (entry == null) {
+      return false;
+    }
+    removeEntry(entry);
+    return true;
+  }
+
+  /**
+   * Returns the number of bytes currently being used to store the values in this cache.
+   */
+  public synchronized long size() {
+    ensureInitialized();
+    return mSize;
+  }
+
+  public long getMaxSize() {
+    return mMaxSize;
+  }
+
+  private synchronized File completeEdit(Editor editor, boolean success) {
+    File tempFile = editor.mTempFile;
+    if (!success) {
+      tempFile.delete();
+      return null;
+    }
+    Entry entry = mEntries.get(editor.mKey);
+    if (entry == null) {
+      entry = new Entry(editor.mKey);
+    }
+    File cleanFile = entry.getCleanFile();
+    if (!tempFile.renameTo(cleanFile)) {
+      tempFile.delete();
+      return null;
+    }
+    long length = cleanFile.length();
+    mSize = mSize - entry.mLength + length;
+    entry.mLength = length;
+    mEntries.put(entry.mKey, entry);
+    mRedundantOpCount++;
+    journal(CLEAN + ' ' + entry.mKey + ' ' + length);
+    if (mSize > mMaxSize || journalRebuildRequired()) {
+      mCleanupExecutor.execute(mCleanupRunnable);
+    }
+    return cleanFile;
+  }
+
+  private void removeEntry(Entry entry) {
+    entry.getCleanFile().delete();
+    mSize -= entry.mLength;
+    mEntries.remove(entry.mKey);
+    mRedundantOpCount++;
+    journal(REMOVE + ' ' + entry.mKey);
+  }
+
+  private void trimToSize() {
+    Iterator<Entry> iterator = mEntries.values().iterator();
+    while (mSize > mMaxSize && iterator.hasNext()) {
+      Entry entry = iterator.next();
+      entry.getCleanFile().delete();
+      mSize -= entry.mLength;
+      iterator.remove();
+      mRedundantOpCount++;
+      journal(REMOVE + ' ' + entry.mKey);
+    }
+  }
+
+  /**
+   * We only rebuild the journal when it will halve the size of the journal and eliminate at least
+   * 2000 ops.
+   */
+  private boolean journalRebuildRequired() {
+    return mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+        && mRedundantOpCount >= mEntries.size();
+  }
+
+  private void journal(String line) {
+    if (mJournalWriter == null) {
+      return;
+    }
+    try {
+      mJournalWriter.write(line);
+      mJournalWriter.write('\n');
+      mJournalWriter.flush();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void ensureInitialized() {
+    if (mInitialized) {
+      return;
+    }
+    mInitialized = true;
+    if (!mDirectory.exists()) {
+      mDirectory.mkdirs();
+    }
+    deleteTempFiles();
+    if (mJournalFile.exists()) {
+      try {
+        readJournal();
+      } catch (IOException e) {
+        e.printStackTrace();
+        mEntries.clear();
+        mSize = 0;
+        adoptDirectory();
+      }
+    } else {
+      // Files written by an older version of the cache have no journal, keep them.
+      adoptDirectory();
+    }
+    rebuildJournal();
+    if (mSize > mMaxSize) {
+      mCleanupExecutor.execute(mCleanupRunnable);
+    }
+  }
+
+  private void readJournal() throws IOException {
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournalFile),
+          "US-ASCII"));
+      if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())
+          || !"".equals(reader.readLine())) {
+        throw new IOException("unexpected journal header");
+      }
+      int lineCount = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        readJournalLine(line);
+        lineCount++;
+      }
+      mRedundantOpCount = lineCount - mEntries.size();
+    } finally {
+      closeQuietly(reader);
+    }
+    // Drop entries whose files went missing behind our back.
+    mSize = 0;
+    Iterator<Entry> iterator = mEntries.values().iterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (entry.getCleanFile().exists()) {
+        mSize += entry.mLength;
+      } else {
+        iterator.remove();
+      }
+    }
+  }
+
+  private void readJournalLine(String line) throws IOException {
+    String[] parts = line.split(" ");
+    if (parts.length < 2) {
+      throw new IOException("unexpected journal line: " + line);
+    }
+    String key = parts[1];
+    if (CLEAN.equals(parts[0]) && parts.length == 3) {
+      Entry entry = mEntries.get(key);
+      if (entry == null) {
+        entry = new Entry(key);
+      }
+      try {
+        entry.mLength = Long.parseLong(parts[2]);
+      } catch (NumberFormatException e) {
+        throw new IOException("unexpected journal line: " + line);
+      }
+      mEntries.put(key, entry);
+    } else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+      mEntries.remove(key);
+    } else if (READ.equals(parts[0]) && parts.length == 2) {
+      // This moves the entry to the tail of the access order.
+      mEntries.get(key);
+    } else {
+      throw new IOException("unexpected journal line: " + line);
+    }
+  }
+
+  /**
+   * Indexes the files already in the directory, oldest first.
+   */
+  private void adoptDirectory() {
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File lhs, File rhs) {
+        long l = lhs.lastModified();
+        long r = rhs.lastModified();
+        return l < r ? -1 : (l == r ? 0 : 1);
+      }
+    });
+    for (File file : files) {
+      String name = file.getName();
+      if (!file.isFile() || name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TEMP)) {
+        continue;
+      }
+      Entry entry = new Entry(name);
+      entry.mLength = file.length();
+      mEntries.put(name, entry);
+      mSize += entry.mLength;
+    }
+  }
+
+  private void deleteTempFiles() {
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.getName().endsWith(TEMP_SUFFIX)) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Writes a compact journal that only holds the current entries, replacing the current one.
+   */
+  private void rebuildJournal() {
+    closeQuietly(mJournalWriter);
+    mJournalWriter = null;
+    File tempJournal = new File(mDirectory, JOURNAL_FILE_TEMP);
+    Writer writer = null;
+    try {
+      writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempJournal),
+          "US-ASCII"));
+      writer.write(MAGIC);
+      writer.write('\n');
+      writer.write(VERSION);
+      writer.write('\n');
+      writer.write('\n');
+      List<Entry> entries = new ArrayList<>(mEntries.values());
+      for (Entry entry : entries) {
+        writer.write(CLEAN + ' ' + entry.mKey + ' ' + entry.mLength + '\n');
+      }
+      writer.close();
+      writer = null;
+      if (!tempJournal.renameTo(mJournalFile)) {
+        throw new IOException("cannot rename " + tempJournal);
+      }
+      mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+          new FileOutputStream(mJournalFile, true), "US-ASCII"));
+      mRedundantOpCount = 0;
+    } catch (IOException e) {
+      // Without a journal the cache still works, it just won't survive a restart.
+      e.printStackTrace();
+    } finally {
+      closeQuietly(writer);
+    }
+  }
+
+  static String hashKey(String key) {
+    if (key == null) {
+      return "";
+    }
+    String cacheKey;
+    try {
+      final MessageDigest mDigest = MessageDigest.getInstance("MD5");
+      mDigest.update(key.getBytes());
+      cacheKey = bytesToHexString(mDigest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      cacheKey = String.valueOf(key.hashCode());
+    }
+    return cacheKey;
+  }
+
+  private static String bytesToHexString(byte[] bytes) {
+    StringBuilder sb = new StringBuilder();
+    for (byte _byte : bytes) {
+      String hex = Integer.toHexString(0xFF & _byte);
+      if (hex.length() == 1) {
+        sb.append('0');
+      }
+      sb.append(hex);
+    }
+    return sb.toString();
+  }
+
+  static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private final class Entry {
+
+    private final String mKey;
+    private long mLength;
+
+    Entry(String key) {
+      mKey = key;
+    }
+
+    File getCleanFile() {
+      return new File(mDirectory, mKey);
+    }
+  }
+
+  /**
+   * Edits the value of an entry. Exactly one of {@link #commit()} or {@link #abort()} must be
+   * called.
+   */
+  public final class Editor {
+
+    private final String mKey;
+    private final File mTempFile;
+    private boolean mDone;
+
+    Editor(String key, File tempFile) {
+      mKey = key;
+      mTempFile = tempFile;
+    }
+
+    /**
+     * Returns the temp file the new value is written to.
+     */
+    public File getFile() {
+      return mTempFile;
+    }
+
+    public OutputStream newOutputStream() throws FileNotFoundException {
+      return new FileOutputStream(mTempFile);
+    }
+
+    /**
+     * Atomically publishes the written value, replacing any previous one.
+     *
+     * @return the committed file, or null if the value could not be published.
+     */
+    public File commit() {
+      if (mDone) {
+        return null;
+      }
+      mDone = true;
+      return completeEdit(this, true);
+    }
+
+    public void abort() {
+      if (!mDone) {
+        mDone = true;
+        completeEdit(this, false);
+      }
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package com.suyf.lib;
+
+import android.graphics.drawable.Drawable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decodes the formats that are not plain bitmaps, e.g. animations. Registered with {@link
+ * DecoderRegistry}, images no decoder handles are decoded by {@link
+ * android.graphics.BitmapFactory}.
+ */
+public interface DrawableDecoder {
+
+  /**
+   * Returns true if this decoder decodes the image. Called on a decode thread.
+   *
+   * @param format The format sniffed from the header.
+   * @param header The first bytes of the encoded image, for formats {@link ImageFormat} doesn't
+   * know.
+   * @param length How many bytes of the header are valid.
+   */
+  boolean handles(ImageFormat format, byte[] header, int length);
+
+  /**
+   * Decodes the image. Called on a decode thread.
+   *
+   * @return The drawable, or null if the image could not be decoded.
+   */
+  Drawable decode(File file) throws IOException;
+
+  /**
+   * Frees a drawable this decoder returned that was never delivered.
+   */
+  void recycle(Drawable drawable);
+}
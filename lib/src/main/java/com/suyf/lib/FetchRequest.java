@@ -0,0 +1,489 @@
+package com.suyf.lib;
+
+import android.graphics.BitmapFactory;
+import com.suyf.lib.ImageLoader.ImageCache;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * Fetches the encoded bytes of one url into the disk cache, streaming them from the network if
+ * they are not cached yet, and fans the file out to every {@link ImageRequest} that wants that url
+ * at some size. Each size is decoded once, however
+ * many sizes of the same url are in flight there is only one download.
+ *
+ * <p>The fetch runs at the highest priority of the requests waiting for it, on the executor of its
+ * current stage, see {@link ConcurrentExecutor}.
+ */
+public class FetchRequest extends PriorityTask {
+
+  /**
+   * Notified once the bytes were handed to the requests, or the fetch failed or was canceled.
+   */
+  public interface Listener {
+
+    void onFetchFinished(FetchRequest fetch);
+  }
+
+  /**
+   * The fetch moves through these stages, each runs on its own executor so slow network reads
+   * don't hold up decodes and the reverse.
+   */
+  private enum Stage {
+    /**
+     * Looks for the file in the disk cache.
+     */
+    PROBE,
+    /**
+     * Downloads the file into the disk cache.
+     */
+    FETCH,
+    /**
+     * Decodes the file for every waiting size.
+     */
+    DECODE
+  }
+
+  private final String mUrl;
+  private final Call mCall;
+  private final boolean mAsync;
+  private final ImageCache mCache;
+  private final Listener mListener;
+  /**
+   * The requests waiting for the bytes, guarded by {@code this}.
+   */
+  private final List<ImageRequest> mRequests = new ArrayList<>();
+  private boolean mFinished;
+  private boolean mCanceled;
+  private Stage mStage = Stage.PROBE;
+  /**
+   * The file found by the cache probe, waiting to be decoded.
+   */
+  private File mCachedFile;
+  /**
+   * The file a download was written to, waiting to be decoded.
+   */
+  private DiskLruCache.Editor mDownload;
+  /**
+   * When the asynchronous download was enqueued, in {@link System#nanoTime()}.
+   */
+  private volatile long mEnqueuedAt;
+  /**
+   * Receives asynchronous downloads on OkHttp's dispatcher threads.
+   */
+  private final Callback mCallback = new Callback() {
+    @Override
+    public void onFailure(Call call, IOException e) {
+      recordFetchTime();
+      e.printStackTrace();
+      finishWithError(e);
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) {
+      DiskLruCache.Editor download;
+      try {
+        download = download(response);
+      } catch (Exception e) {
+        e.printStackTrace();
+        finishWithError(e);
+        return;
+      } finally {
+        DiskLruCache.closeQuietly(response);
+        recordFetchTime();
+      }
+      onDownloaded(download);
+    }
+  };
+
+  /**
+   * @param url The url to fetch.
+   * @param call The call downloading the url.
+   * @param async True to run the call through OkHttp's dispatcher ({@link Call#enqueue}), so the
+   * dispatcher's request limits apply and no pool thread waits for the network. False to block a
+   * pool thread in {@link Call#execute()}.
+   * @param cache The cache holding the downloaded file.
+   * @param listener Notified once the fetch finished.
+   */
+  public FetchRequest(String url, Call call, boolean async, ImageCache cache, Listener listener) {
+    super(Priority.BACKGROUND);
+    mUrl = url;
+    mCall = call;
+    mAsync = async;
+    mCache = cache;
+    mListener = listener;
+  }
+
+  public String getUrl() {
+    return mUrl;
+  }
+
+  /**
+   * Adds a request for another size of the url.
+   *
+   * @return false if the bytes were already handed out, the caller has to start a new fetch.
+   */
+  public boolean addRequest(ImageRequest request) {
+    synchronized (this) {
+      if (mFinished || mCanceled) {
+        return false;
+      }
+      mRequests.add(request);
+    }
+    updatePriority();
+    return true;
+  }
+
+  /**
+   * Moves the fetch to the highest priority of the requests waiting for it. Call after the
+   * priority of one of them changed.
+   */
+  public void updatePriority() {
+    Priority highest = null;
+    synchronized (this) {
+      for (ImageRequest request : mRequests) {
+        if (highest == null || request.getPriority().compareTo(highest) < 0) {
+          highest = request.getPriority();
+        }
+      }
+    }
+    if (highest != null) {
+      setPriority(highest);
+    }
+  }
+
+  /**
+   * Removes a request and cancels the download if no one else is waiting for it.
+   *
+   * @return True if the fetch was canceled, false otherwise.
+   */
+  public boolean removeRequest(ImageRequest request) {
+    boolean canceled;
+    synchronized (this) {
+      mRequests.remove(request);
+      if (mFinished || mCanceled) {
+        return false;
+      }
+      canceled = mCanceled = mRequests.isEmpty();
+    }
+    if (!canceled) {
+      // The remaining requests may be less urgent.
+      updatePriority();
+      return false;
+    }
+    mCall.cancel();
+    // Give the queue slot to someone else.
+    dequeue();
+    mListener.onFetchFinished(this);
+    return true;
+  }
+
+  /**
+   * Queues the fetch, starting with the cache probe.
+   */
+  public void start() {
+    moveTo(Stage.PROBE);
+  }
+
+  @Override
+  public synchronized boolean isCanceled() {
+    return mCanceled;
+  }
+
+  @Override
+  public void run() {
+    Stage stage;
+    File cachedFile;
+    DiskLruCache.Editor download;
+    boolean canceled;
+    synchronized (this) {
+      stage = mStage;
+      cachedFile = mCachedFile;
+      download = mDownload;
+      canceled = mCanceled;
+    }
+    if (canceled) {
+      if (download != null) {
+        download.abort();
+      }
+      return;
+    }
+    switch (stage) {
+      case PROBE:
+        probe();
+        break;
+      case FETCH:
+        fetch();
+        break;
+      case DECODE:
+        decode(cachedFile, download);
+        break;
+    }
+  }
+
+  private void probe() {
+    File file = mCache.getFile(mUrl);
+    if (file == null) {
+      moveTo(Stage.FETCH);
+      return;
+    }
+    synchronized (this) {
+      mCachedFile = file;
+    }
+    moveTo(Stage.DECODE);
+  }
+
+  private void fetch() {
+    Response response = null;
+    DiskLruCache.Editor download;
+    try {
+      response = mCall.execute();
+      download = download(response);
+    } catch (Exception e) {
+      e.printStackTrace();
+      finishWithError(e);
+      return;
+    } finally {
+      DiskLruCache.closeQuietly(response);
+    }
+    onDownloaded(download);
+  }
+
+  private void onDownloaded(DiskLruCache.Editor download) {
+    synchronized (this) {
+      if (!mCanceled) {
+        mCachedFile = null;
+        mDownload = download;
+        download = null;
+      }
+    }
+    if (download != null) {
+      // Canceled during the download, don't persist it.
+      download.abort();
+      return;
+    }
+    moveTo(Stage.DECODE);
+  }
+
+  private void decode(File cachedFile, DiskLruCache.Editor download) {
+    if (download != null) {
+      if (!fanOut(download.getFile(), download)) {
+        download.abort();
+        finishWithError(new Exception("parse bitmap fail"));
+      }
+      return;
+    }
+    if (!fanOut(cachedFile, /* editor= */ null)) {
+      // The file on disk can't be decoded: download it again.
+      synchronized (this) {
+        mCachedFile = null;
+      }
+      moveTo(Stage.FETCH);
+    }
+  }
+
+  /**
+   * Queues the fetch on the executor of its next stage.
+   */
+  private void moveTo(Stage stage) {
+    synchronized (this) {
+      if (mCanceled) {
+        return;
+      }
+      mStage = stage;
+    }
+    switch (stage) {
+      case PROBE:
+        ConcurrentExecutor.getCacheExecutor().execute(this);
+        break;
+      case FETCH:
+        if (mAsync) {
+          // Leave the network to OkHttp's dispatcher, no pool thread waits for it.
+          mEnqueuedAt = System.nanoTime();
+          mCall.enqueue(mCallback);
+        } else {
+          ConcurrentExecutor.get().execute(this);
+        }
+        break;
+      case DECODE:
+        ConcurrentExecutor.getDecodeExecutor().execute(this);
+        break;
+    }
+  }
+
+  @Override
+  protected void onDropped() {
+    DiskLruCache.Editor download;
+    synchronized (this) {
+      if (mFinished || mCanceled) {
+        return;
+      }
+      download = mDownload;
+    }
+    if (download != null) {
+      download.abort();
+    }
+    finishWithError(new RejectedExecutionException("too many images are loading, " + mUrl));
+  }
+
+  private void recordFetchTime() {
+    ConcurrentExecutor.getAsyncFetchTimes()
+        .record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mEnqueuedAt));
+  }
+
+  /**
+   * Streams the body into the disk cache as it arrives, the heap never holds the whole image.
+   *
+   * @return The editor holding the downloaded file, not committed yet.
+   */
+  private DiskLruCache.Editor download(Response response) throws IOException {
+    if (!response.isSuccessful()) {
+      // Don't cache an error page as the image.
+      throw new IOException("HTTP " + response.code() + " for " + mUrl);
+    }
+    DiskLruCache.Editor editor = mCache.editFile(mUrl);
+    BufferedSink sink = null;
+    boolean success = false;
+    try {
+      sink = Okio.buffer(Okio.sink(editor.getFile()));
+      sink.writeAll(response.body().source());
+      sink.close();
+      sink = null;
+      success = true;
+      return editor;
+    } finally {
+      DiskLruCache.closeQuietly(sink);
+      if (!success) {
+        editor.abort();
+      }
+    }
+  }
+
+  /**
+   * Returns true if the header of the file can be read by a registered decoder or by {@link
+   * BitmapFactory}, without decoding the pixels.
+   */
+  private static boolean isDecodable(File file) {
+    if (DecoderRegistry.get().find(file) != null) {
+      return true;
+    }
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(file.getPath(), options);
+    return options.outWidth > 0 && options.outHeight > 0;
+  }
+
+  /**
+   * Decodes the first request on this thread to validate the file, then hands it to the other
+   * sizes, each decoded as its own task. A downloaded file is only committed to the disk cache
+   * once it decoded, through the cache's write-behind queue after the last size read it.
+   *
+   * @param editor The editor the file was downloaded into, or null if it was already cached.
+   * @return false if the file could not be decoded, nothing was delivered in that case. A size
+   * that ran out of memory fails on its own, the file is still handed to the others then.
+   */
+  private boolean fanOut(final File file, final DiskLruCache.Editor editor) {
+    ImageRequest first = null;
+    synchronized (this) {
+      for (ImageRequest request : mRequests) {
+        if (!request.isCanceled()) {
+          first = request;
+          break;
+        }
+      }
+    }
+    if (first != null && !first.deliverResponse(file)) {
+      return false;
+    }
+    if (editor != null && (first == null || first.isCanceled()) && !isDecodable(file)) {
+      // A canceled request may have stopped before decoding, validate the download on its own.
+      return false;
+    }
+    if (editor != null && isCanceled()) {
+      // No one is left, don't persist the download.
+      editor.abort();
+      return true;
+    }
+    List<ImageRequest> others;
+    synchronized (this) {
+      mFinished = true;
+      others = new ArrayList<>(mRequests);
+      if (first != null) {
+        others.remove(first);
+      }
+    }
+    mListener.onFetchFinished(this);
+    // The commit moves the file, it waits for every size still to read it, and for this loop.
+    final AtomicInteger readers = new AtomicInteger(others.size() + 1);
+    for (final ImageRequest request : others) {
+      PriorityTask task = new PriorityTask(request.getPriority()) {
+        @Override
+        public void run() {
+          request.setTask(null);
+          try {
+            if (!request.deliverResponse(file)) {
+              request.deliverError(new Exception("parse bitmap fail"));
+            }
+          } finally {
+            release(editor, readers);
+          }
+        }
+
+        @Override
+        public boolean isCanceled() {
+          return request.isCanceled();
+        }
+
+        @Override
+        public boolean dequeue() {
+          if (!super.dequeue()) {
+            return false;
+          }
+          release(editor, readers);
+          return true;
+        }
+
+        @Override
+        protected void onDropped() {
+          request.setTask(null);
+          release(editor, readers);
+          request.deliverError(new RejectedExecutionException("too many images are loading"));
+        }
+      };
+      request.setTask(task);
+      ConcurrentExecutor.getDecodeExecutor().execute(task);
+    }
+    release(editor, readers);
+    return true;
+  }
+
+  /**
+   * Commits the download once the last of its {@code readers} is done with it.
+   */
+  private void release(DiskLruCache.Editor editor, AtomicInteger readers) {
+    if (editor != null && readers.decrementAndGet() == 0) {
+      mCache.commitFile(mUrl, editor);
+    }
+  }
+
+  private void finishWithError(Exception error) {
+    List<ImageRequest> requests;
+    synchronized (this) {
+      mFinished = true;
+      requests = new ArrayList<>(mRequests);
+    }
+    mListener.onFetchFinished(this);
+    for (ImageRequest request : requests) {
+      request.deliverError(error);
+    }
+  }
+}
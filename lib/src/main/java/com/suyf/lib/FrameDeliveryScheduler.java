@@ -0,0 +1,67 @@
+package com.suyf.lib;
+
+import android.support.annotation.MainThread;
+import android.view.Choreographer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers pending responses on the main thread at the start of the next frame. Each frame it
+ * delivers until its time budget is used up and leaves the rest for the following frames, so a
+ * burst of completions neither waits for a fixed delay nor drops a frame.
+ */
+public class FrameDeliveryScheduler implements Choreographer.FrameCallback {
+
+  /**
+   * The source of the pending responses.
+   */
+  public interface Target {
+
+    /**
+     * Delivers the next pending response.
+     *
+     * @return false if nothing was pending.
+     */
+    boolean deliverNext();
+  }
+
+  private final Target mTarget;
+  private long mFrameBudgetNanos;
+  private boolean mScheduled;
+
+  /**
+   * @param target The source of the pending responses.
+   * @param frameBudgetMs The time each frame may spend delivering.
+   */
+  public FrameDeliveryScheduler(Target target, int frameBudgetMs) {
+    mTarget = target;
+    setFrameBudget(frameBudgetMs);
+  }
+
+  public void setFrameBudget(int frameBudgetMs) {
+    mFrameBudgetNanos = TimeUnit.MILLISECONDS.toNanos(frameBudgetMs);
+  }
+
+  /**
+   * Makes sure the pending responses are delivered starting with the next frame.
+   */
+  @MainThread
+  public void schedule() {
+    if (!mScheduled) {
+      mScheduled = true;
+      Choreographer.getInstance().postFrameCallback(this);
+    }
+  }
+
+  @Override
+  public void doFrame(long frameTimeNanos) {
+    mScheduled = false;
+    long start = System.nanoTime();
+    while (mTarget.deliverNext()) {
+      if (System.nanoTime() - start >= mFrameBudgetNanos) {
+        // Out of time for this frame, continue with the next one.
+        schedule();
+        return;
+      }
+    }
+  }
+}
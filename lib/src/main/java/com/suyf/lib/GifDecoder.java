@@ -0,0 +1,49 @@
+package com.suyf.lib;
+
+import android.graphics.drawable.Drawable;
+import java.io.File;
+import java.io.IOException;
+import pl.droidsonroids.gif.GifDrawable;
+
+/**
+ * Decodes GIFs through android-gif-drawable. Only loaded once the library was found on the class
+ * path, see {@link DecoderRegistry#isGifSupported()}.
+ */
+public class GifDecoder implements DrawableDecoder {
+
+  @Override
+  public boolean handles(ImageFormat format, byte[] header, int length) {
+    return format == ImageFormat.GIF;
+  }
+
+  @Override
+  public Drawable decode(File file) throws IOException {
+    return new GifDrawable(file);
+  }
+
+  @Override
+  public void recycle(Drawable drawable) {
+    ((GifDrawable) drawable).recycle();
+  }
+
+  /**
+   * Returns the bytes held by the frame buffer of a GIF, or -1 if the drawable is no GIF.
+   */
+  static long getByteCount(Drawable drawable) {
+    return drawable instanceof GifDrawable
+        ? ((GifDrawable) drawable).getAllocationByteCount() : -1;
+  }
+
+  /**
+   * Frees the native frame buffer of a GIF.
+   *
+   * @return false if the drawable is no GIF.
+   */
+  static boolean recycleIfGif(Drawable drawable) {
+    if (drawable instanceof GifDrawable) {
+      ((GifDrawable) drawable).recycle();
+      return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,72 @@
+package com.suyf.lib;
+
+/**
+ * The encoded formats told apart by the first bytes of an image.
+ */
+public enum ImageFormat {
+  JPEG,
+  PNG,
+  GIF,
+  WEBP,
+  /**
+   * A WebP with the animation flag of its extended header set.
+   */
+  ANIMATED_WEBP,
+  UNKNOWN;
+
+  /**
+   * How many bytes {@link #sniff(byte[], int)} looks at.
+   */
+  public static final int HEADER_LENGTH = 21;
+
+  private static final byte[] PNG_SIGNATURE = {
+      (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'
+  };
+  private static final byte[] GIF87A_SIGNATURE = {'G', 'I', 'F', '8', '7', 'a'};
+  private static final byte[] GIF89A_SIGNATURE = {'G', 'I', 'F', '8', '9', 'a'};
+  private static final byte[] RIFF_SIGNATURE = {'R', 'I', 'F', 'F'};
+  private static final byte[] WEBP_SIGNATURE = {'W', 'E', 'B', 'P'};
+  private static final byte[] VP8X_SIGNATURE = {'V', 'P', '8', 'X'};
+  private static final int WEBP_ANIMATION_FLAG = 0x02;
+
+  /**
+   * Tells the format from the first bytes of the encoded image.
+   *
+   * @param header The first bytes, {@link #HEADER_LENGTH} are enough.
+   * @param length How many bytes of the header are valid.
+   */
+  public static ImageFormat sniff(byte[] header, int length) {
+    if (length >= 3 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8
+        && (header[2] & 0xFF) == 0xFF) {
+      return JPEG;
+    }
+    if (matches(header, length, 0, PNG_SIGNATURE)) {
+      return PNG;
+    }
+    if (matches(header, length, 0, GIF87A_SIGNATURE)
+        || matches(header, length, 0, GIF89A_SIGNATURE)) {
+      return GIF;
+    }
+    if (matches(header, length, 0, RIFF_SIGNATURE) && matches(header, length, 8, WEBP_SIGNATURE)) {
+      // The extended format keeps its flags right after the chunk size.
+      if (matches(header, length, 12, VP8X_SIGNATURE) && length > 20
+          && (header[20] & WEBP_ANIMATION_FLAG) != 0) {
+        return ANIMATED_WEBP;
+      }
+      return WEBP;
+    }
+    return UNKNOWN;
+  }
+
+  private static boolean matches(byte[] header, int length, int offset, byte[] signature) {
+    if (length < offset + signature.length) {
+      return false;
+    }
+    for (int i = 0; i < signature.length; i++) {
+      if (header[offset + i] != signature[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,194 @@
+package com.suyf.lib;
+
+import android.os.Looper;
+import com.suyf.lib.ImageLoader.ImageContainer;
+import com.suyf.lib.ImageLoader.ImageListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of {@link ImageLoader#load(String, int, int, android.widget.ImageView.ScaleType,
+ * Priority)}, for callers that are not on the main thread. The container holds the bitmap or, for
+ * animated images, the drawable.
+ *
+ * <p>The bitmap is held until {@link #release()}, call it once it is no longer used so it can be
+ * reused. Canceling the future cancels the load if no one else waits for it.
+ */
+public class ImageFuture implements Future<ImageContainer> {
+
+  static final Executor DIRECT_EXECUTOR = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  private final CountDownLatch mDoneLatch = new CountDownLatch(1);
+  /**
+   * Listeners waiting for the result, guarded by {@code this} like the result fields.
+   */
+  private final List<Runnable> mListeners = new ArrayList<>();
+  private ImageContainer mRequestContainer;
+  private ImageContainer mResult;
+  private Exception mError;
+  private boolean mCanceled;
+  private boolean mDone;
+
+  final ImageListener mImageListener = new ImageListener() {
+    @Override
+    public void onDrawable(ImageContainer response, boolean isImmediate) {
+      if (response.getDrawable() != null) {
+        complete(response, null, false);
+      }
+    }
+
+    @Override
+    public void onResponse(ImageContainer response, boolean isImmediate) {
+      // The immediate response without a bitmap is the placeholder.
+      if (response.getBitmap() != null) {
+        complete(response, null, false);
+      }
+    }
+
+    @Override
+    public void onError(Exception exception) {
+      complete(null, exception, false);
+    }
+  };
+
+  synchronized void setRequestContainer(ImageContainer container) {
+    mRequestContainer = container;
+  }
+
+  /**
+   * Runs {@code listener} on {@code executor} once the future is done, right away if it already
+   * is.
+   */
+  public void addListener(final Runnable listener, final Executor executor) {
+    Runnable runnable = new Runnable() {
+      @Override
+      public void run() {
+        executor.execute(listener);
+      }
+    };
+    synchronized (this) {
+      if (!mDone) {
+        mListeners.add(runnable);
+        return;
+      }
+    }
+    runnable.run();
+  }
+
+  /**
+   * Lets go of the bitmap, or cancels the load if it is still running.
+   */
+  public void release() {
+    ImageContainer requestContainer;
+    ImageContainer result;
+    synchronized (this) {
+      requestContainer = mRequestContainer;
+      result = mResult;
+    }
+    if (requestContainer != null) {
+      requestContainer.cancelRequest();
+    }
+    if (result != null && result != requestContainer) {
+      result.cancelRequest();
+    }
+    complete(null, null, true);
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    ImageContainer requestContainer;
+    synchronized (this) {
+      if (mDone) {
+        return false;
+      }
+      requestContainer = mRequestContainer;
+    }
+    if (requestContainer != null) {
+      requestContainer.cancelRequest();
+    }
+    return complete(null, null, true);
+  }
+
+  @Override
+  public synchronized boolean isCancelled() {
+    return mCanceled;
+  }
+
+  @Override
+  public synchronized boolean isDone() {
+    return mDone;
+  }
+
+  /**
+   * Waits for the image. Must not be called on the main thread, responses are delivered there.
+   */
+  @Override
+  public ImageContainer get() throws InterruptedException, ExecutionException {
+    checkNotMainThread();
+    mDoneLatch.await();
+    return getResult();
+  }
+
+  /**
+   * Waits at most the given time for the image. Must not be called on the main thread.
+   */
+  @Override
+  public ImageContainer get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    checkNotMainThread();
+    if (!mDoneLatch.await(timeout, unit)) {
+      throw new TimeoutException();
+    }
+    return getResult();
+  }
+
+  private synchronized ImageContainer getResult() throws ExecutionException {
+    if (mCanceled) {
+      throw new CancellationException();
+    }
+    if (mError != null) {
+      throw new ExecutionException(mError);
+    }
+    return mResult;
+  }
+
+  private boolean complete(ImageContainer result, Exception error, boolean canceled) {
+    List<Runnable> listeners;
+    synchronized (this) {
+      if (mDone) {
+        return false;
+      }
+      mDone = true;
+      mResult = result;
+      mError = error;
+      mCanceled = canceled;
+      listeners = new ArrayList<>(mListeners);
+      mListeners.clear();
+    }
+    mDoneLatch.countDown();
+    for (Runnable listener : listeners) {
+      listener.run();
+    }
+    return true;
+  }
+
+  static void checkNotMainThread() {
+    // There is no main looper outside of an app process, e.g. in unit tests.
+    Looper mainLooper = Looper.getMainLooper();
+    if (mainLooper != null && Looper.myLooper() == mainLooper) {
+      throw new IllegalStateException("waiting on the main thread would never see the response");
+    }
+  }
+}
@@ -15,15 +15,26 @@ package com.suyf.lib;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
+import android.graphics.drawable.Animatable;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.os.Looper;
+import android.support.annotation.AnyThread;
 import android.support.annotation.MainThread;
 import android.widget.ImageView;
 import android.widget.ImageView.ScaleType;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import okhttp3.Call;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -33,12 +44,18 @@ import okhttp3.Request;
  *
  * <p>The simple way to use this class is to call {@link ImageLoader#get(String, ImageListener)}
  * and to pass in the default image listener provided by {@link ImageLoader#getImageListener(ImageView,
- * int, int)}. Note that all function calls to this class must be made from the main thread, and all
- * responses will be delivered to the main thread as well. Custom {@link }s which don't use the main
- * thread are not supported.
+ * int, int)}. Requests can be made from any thread, e.g. by prefetchers or notification builders.
+ * Immediate responses are delivered on the calling thread, all others on the main thread.
  */
 public class ImageLoader {
 
+  private static final int DEFAULT_FRAME_DELIVERY_BUDGET_MS = 4;
+  /**
+   * Prefix of the cache keys of {@link #getTiled(String, ImageListener, Priority, Object)}, the
+   * keys of sized requests start with "#W".
+   */
+  private static final String TILED_KEY_PREFIX = "#TILED";
+
   /**
    * RequestQueue for dispatching ImageRequests onto.
    */
@@ -48,26 +65,79 @@ public class ImageLoader {
    */
   private final ImageCache mCache;
   /**
-   * HashMap of Cache keys -> BatchedImageRequest used to track in-flight requests so that we can
-   * coalesce multiple requests to the same URL into a single network request.
+   * Map of Cache keys -> BatchedImageRequest used to track in-flight requests so that we can
+   * coalesce multiple requests for the same URL and size into a single decode. Requests are
+   * removed from a worker thread once they finished, each request guards its own containers.
    */
-  private final HashMap<String, BatchedImageRequest> mInFlightRequests = new HashMap<>();
+  private final ConcurrentHashMap<String, BatchedImageRequest> mInFlightRequests =
+      new ConcurrentHashMap<>();
   /**
-   * HashMap of the currently pending responses (waiting to be delivered).
+   * Map of URLs -> FetchRequest so that every size of the same URL shares a single network
+   * request. Fetches remove themselves from a worker thread once the bytes were handed out.
    */
-  private final HashMap<String, BatchedImageRequest> mBatchedResponses = new HashMap<>();
+  private final ConcurrentHashMap<String, FetchRequest> mInFlightFetches =
+      new ConcurrentHashMap<>();
+  private final FetchRequest.Listener mFetchListener = new FetchRequest.Listener() {
+    @Override
+    public void onFetchFinished(FetchRequest fetch) {
+      mInFlightFetches.remove(fetch.getUrl(), fetch);
+    }
+  };
+  /**
+   * The currently pending responses (waiting to be delivered), in arrival order. Only touched on
+   * the main thread.
+   */
+  private final ArrayDeque<BatchedImageRequest> mBatchedResponses = new ArrayDeque<>();
   /**
    * Handler to the main thread.
    */
   private final Handler mHandler = new Handler(Looper.getMainLooper());
   /**
-   * Amount of time to wait after first response arrives before delivering all responses.
+   * Amount of time to wait after a response arrives before it is queued for delivery.
    */
-  private int mBatchResponseDelayMs = 100;
+  private volatile int mBatchResponseDelayMs = 0;
   /**
-   * Runnable for in-flight response delivery.
+   * Delivers the pending responses on the next frames.
    */
-  private Runnable mRunnable;
+  private final FrameDeliveryScheduler mDelivery =
+      new FrameDeliveryScheduler(new FrameDeliveryScheduler.Target() {
+        @Override
+        public boolean deliverNext() {
+          return deliverNextResponse();
+        }
+      }, DEFAULT_FRAME_DELIVERY_BUDGET_MS);
+  /**
+   * Number of {@link #get(String, ImageListener, int, int, ScaleType)} calls, and how many of them
+   * were answered straight from the memory cache.
+   */
+  private final AtomicInteger mRequestCount = new AtomicInteger();
+  private final AtomicInteger mMemoryHitCount = new AtomicInteger();
+  /**
+   * How many requests were scaled down from a larger size of the same URL held in memory.
+   */
+  private final AtomicInteger mVariantHitCount = new AtomicInteger();
+  /**
+   * Tags paused through {@link #pause(Object)}, and the requests waiting for them in the order
+   * they were made. Both guarded by {@code mDeferredRequests}.
+   */
+  private final HashSet<Object> mPausedTags = new HashSet<>();
+  private final LinkedHashMap<ImageContainer, DeferredRequest> mDeferredRequests =
+      new LinkedHashMap<>();
+  /**
+   * Whether downloads go through OkHttp's dispatcher instead of blocking pool threads.
+   */
+  private volatile boolean mAsyncFetch;
+  /**
+   * Whether images are scaled to their size while decoding, see {@link
+   * ImageRequest#setSinglePassDecode(boolean)}.
+   */
+  private volatile boolean mSinglePassDecode = true;
+  /**
+   * Animated drawables -> how many visible views show them. Only these animate. Guarded by
+   * itself, like {@code mAnimationsEnabled}.
+   */
+  private final WeakHashMap<Drawable, Integer> mVisibleAnimations = new WeakHashMap<>();
+  private boolean mAnimationsEnabled = true;
 
   /**
    * Constructs a new ImageLoader.
@@ -101,8 +171,10 @@ public class ImageLoader {
 
       @Override
       public void onDrawable(ImageContainer response, boolean isImmediate) {
-        if (response.getDrawable() != null) {
-          view.setImageDrawable(response.getDrawable());
+        Drawable drawable = response.attachDrawable();
+        if (drawable != null) {
+          view.setImageDrawable(drawable);
+          response.setAnimationVisible(true);
         } else if (defaultImageResId != 0) {
           view.setImageResource(defaultImageResId);
         }
@@ -195,7 +267,7 @@ public class ImageLoader {
    * returns a bitmap container that contains all of the data relating to the request (as well as
    * the default image if the requested image is not available).
    *
-   * <p>Must be called from the main thread.
+   * <p>May be called from any thread, see {@link ImageLoader}.
    *
    * @param requestUrl The url of the remote image
    * @param imageListener The listener to call when the remote image is loaded
@@ -205,84 +277,399 @@ public class ImageLoader {
    * @return A container object that contains all of the properties of the request, as well as the
    * currently available image (default if remote is not loaded).
    */
-  @MainThread
+  @AnyThread
   public ImageContainer get(
       String requestUrl,
       ImageListener imageListener,
       int maxWidth,
       int maxHeight,
       ScaleType scaleType) {
+    return get(requestUrl, imageListener, maxWidth, maxHeight, scaleType, Priority.VISIBLE);
+  }
+
+  /**
+   * Equivalent to {@link #get(String, ImageListener, int, int, ScaleType)}, loading the image at
+   * the given priority. The priority can be changed later through {@link
+   * ImageContainer#setPriority(Priority)}.
+   */
+  @AnyThread
+  public ImageContainer get(
+      String requestUrl,
+      ImageListener imageListener,
+      int maxWidth,
+      int maxHeight,
+      ScaleType scaleType,
+      Priority priority) {
+    return get(requestUrl, imageListener, maxWidth, maxHeight, scaleType, priority,
+        /* tag= */ null);
+  }
+
+  /**
+   * Equivalent to {@link #get(String, ImageListener, int, int, ScaleType, Priority)}. While the
+   * tag is paused through {@link #pause(Object)}, only memory hits are served and the load waits
+   * for {@link #resume(Object)}.
+   *
+   * @param tag Groups requests that are paused together, e.g. the views of one list. May be null.
+   */
+  @AnyThread
+  public ImageContainer get(
+      String requestUrl,
+      ImageListener imageListener,
+      int maxWidth,
+      int maxHeight,
+      ScaleType scaleType,
+      Priority priority,
+      Object tag) {
 
     final String cacheKey = getCacheKey(requestUrl, maxWidth, maxHeight, scaleType);
+    mRequestCount.incrementAndGet();
 
-    // Try to look up the request in the cache of remote images.
-//    Bitmap cachedBitmap = mCache.getBitmap(cacheKey);
-//    if (cachedBitmap != null) {
-//      // Return the cached bitmap.
-//      ImageContainer container =
-//          new ImageContainer(null, cachedBitmap, requestUrl, /* cacheKey= */ null, /* listener= */
-//              null);
-//      imageListener.onResponse(container, true);
-//      return container;
-//    }
+    // Try to look up the request in the memory cache. This must not block, disk and network
+    // lookups go through the async path below.
+    Bitmap cachedBitmap = mCache.getAndAcquireBitmap(cacheKey);
+    if (cachedBitmap != null) {
+      mMemoryHitCount.incrementAndGet();
+      ImageContainer container =
+          new ImageContainer(null, cachedBitmap, requestUrl, /* cacheKey= */ null, /* listener= */
+              null);
+      imageListener.onResponse(container, true);
+      return container;
+    }
+    Drawable cachedDrawable = mCache.getAndAcquireDrawable(requestUrl);
+    if (cachedDrawable != null) {
+      mMemoryHitCount.incrementAndGet();
+      ImageContainer container =
+          new ImageContainer(cachedDrawable, null, requestUrl, /* cacheKey= */ null, /* listener= */
+              null);
+      imageListener.onDrawable(container, true);
+      return container;
+    }
 
     // The bitmap did not exist in the cache, fetch it!
+    return startOrDefer(requestUrl, cacheKey, imageListener, maxWidth, maxHeight, scaleType,
+        priority, tag);
+  }
+
+  /**
+   * Loads a very large image, e.g. a panorama or a scan, for display in tiles. The response is a
+   * {@link TiledDrawable} delivered through {@link ImageListener#onDrawable(ImageContainer,
+   * boolean)}. It decodes only the tiles the view shows, at the resolution of its current zoom.
+   * Views showing the same url share the decoder, each gets its own tiles through {@link
+   * ImageContainer#attachDrawable()}.
+   *
+   * @param tag Groups requests that are paused together, see {@link #pause(Object)}. May be null.
+   */
+  @AnyThread
+  public ImageContainer getTiled(String requestUrl, ImageListener imageListener,
+      Priority priority, Object tag) {
+    final String cacheKey = TILED_KEY_PREFIX + requestUrl;
+    mRequestCount.incrementAndGet();
+
+    // The drawable is kept in memory under the key, apart from the animated one of the url.
+    Drawable cachedDrawable = mCache.getAndAcquireDrawable(cacheKey);
+    if (cachedDrawable != null) {
+      mMemoryHitCount.incrementAndGet();
+      ImageContainer container =
+          new ImageContainer(cachedDrawable, null, requestUrl, /* cacheKey= */ null, /* listener= */
+              null);
+      imageListener.onDrawable(container, true);
+      return container;
+    }
+    return startOrDefer(requestUrl, cacheKey, imageListener, 0, 0, ScaleType.MATRIX, priority,
+        tag);
+  }
+
+  /**
+   * Creates the container of a request that missed the memory cache and starts it, or defers it if
+   * its tag is paused.
+   */
+  private ImageContainer startOrDefer(String requestUrl, String cacheKey,
+      ImageListener imageListener, int maxWidth, int maxHeight, ScaleType scaleType,
+      Priority priority, Object tag) {
     ImageContainer imageContainer = new ImageContainer(null, null, requestUrl, cacheKey,
         imageListener);
+    imageContainer.mPriority = priority;
+    imageContainer.mTag = tag;
 
     // Update the caller to let them know that they should use the default bitmap.
     imageListener.onResponse(imageContainer, true);
 
-    // Check to see if a request is already in-flight.
-    BatchedImageRequest request = mInFlightRequests.get(cacheKey);
-    if (request != null) {
-      // If it is, add this request to the list of listeners.
-      request.addContainer(imageContainer);
-      return imageContainer;
+    if (tag != null) {
+      synchronized (mDeferredRequests) {
+        if (mPausedTags.contains(tag)) {
+          mDeferredRequests.put(imageContainer,
+              new DeferredRequest(imageContainer, maxWidth, maxHeight, scaleType));
+          return imageContainer;
+        }
+      }
     }
+    startRequest(imageContainer, maxWidth, maxHeight, scaleType);
+    return imageContainer;
+  }
 
-    // The request is not already in flight. Send the new request to the network and
-    // track it.
-    Call call = mHttpClient.newCall(new Request.Builder().url(requestUrl).build());
-    ImageRequest newRequest =
-        makeImageRequest(requestUrl, maxWidth, maxHeight, scaleType, cacheKey, call);
+  /**
+   * Pauses loading for requests made with the given tag, e.g. while a list flings. Memory hits are
+   * still served, every other request waits until {@link #resume(Object)}.
+   */
+  @AnyThread
+  public void pause(Object tag) {
+    synchronized (mDeferredRequests) {
+      mPausedTags.add(tag);
+    }
+  }
 
-    mInFlightRequests.put(cacheKey, new BatchedImageRequest(newRequest, call, imageContainer));
-    return imageContainer;
+  /**
+   * Starts the requests that were made while the tag was paused. Requests canceled in the meantime,
+   * because their view was bound to another url, are not started.
+   */
+  @MainThread
+  public void resume(Object tag) {
+    List<DeferredRequest> resumed = new ArrayList<>();
+    synchronized (mDeferredRequests) {
+      if (!mPausedTags.remove(tag)) {
+        return;
+      }
+      Iterator<DeferredRequest> iterator = mDeferredRequests.values().iterator();
+      while (iterator.hasNext()) {
+        DeferredRequest deferred = iterator.next();
+        if (tag.equals(deferred.mContainer.mTag)) {
+          resumed.add(deferred);
+          iterator.remove();
+        }
+      }
+    }
+    for (DeferredRequest deferred : resumed) {
+      ImageContainer container = deferred.mContainer;
+      // Another view may have loaded the image meanwhile.
+      Bitmap cachedBitmap = mCache.getAndAcquireBitmap(container.mCacheKey);
+      if (cachedBitmap != null) {
+        mMemoryHitCount.incrementAndGet();
+        boolean delivered = container.setBitmap(cachedBitmap);
+        // the container holds it now.
+        mCache.releaseBitmap(cachedBitmap);
+        if (delivered) {
+          container.mListener.onResponse(container, false);
+        }
+        continue;
+      }
+      startRequest(container, deferred.mMaxWidth, deferred.mMaxHeight, deferred.mScaleType);
+    }
   }
 
-  protected ImageRequest makeImageRequest(
-      String requestUrl, int maxWidth, int maxHeight, ScaleType scaleType, final String cacheKey,
-      Call call) {
-    return new ImageRequest(
-        requestUrl,
-        new ResponseListener() {
-          @Override
-          public void onDrawableResponse(Drawable drawable) {
-            onGetDrawableSuccess(cacheKey, drawable);
-          }
+  @AnyThread
+  public boolean isPaused(Object tag) {
+    synchronized (mDeferredRequests) {
+      return mPausedTags.contains(tag);
+    }
+  }
 
-          @Override
-          public void onBitmapResponse(Bitmap response) {
-            onGetImageSuccess(cacheKey, response);
-          }
+  /**
+   * Loads an image for a caller that is not on the main thread, e.g. to build a notification.
+   * Shares caching, deduplication and cancellation with {@link #get(String, ImageListener, int,
+   * int, ScaleType, Priority)}.
+   *
+   * @return A future to wait on, or to get called back through {@link
+   * ImageFuture#addListener(Runnable, java.util.concurrent.Executor)}.
+   */
+  @AnyThread
+  public ImageFuture load(String requestUrl, int maxWidth, int maxHeight, ScaleType scaleType,
+      Priority priority) {
+    ImageFuture future = new ImageFuture();
+    future.setRequestContainer(get(requestUrl, future.mImageListener, maxWidth, maxHeight,
+        scaleType, priority));
+    return future;
+  }
+
+  /**
+   * Loads several images of the same size at once, see {@link #load(String, int, int, ScaleType,
+   * Priority)}. The returned future is done once every image is.
+   */
+  @AnyThread
+  public BatchImageFuture loadAll(List<String> requestUrls, int maxWidth, int maxHeight,
+      ScaleType scaleType, Priority priority) {
+    List<ImageFuture> futures = new ArrayList<>(requestUrls.size());
+    for (String requestUrl : requestUrls) {
+      futures.add(load(requestUrl, maxWidth, maxHeight, scaleType, priority));
+    }
+    return new BatchImageFuture(futures);
+  }
 
-          @Override
-          public void onErrorResponse(Exception error) {
-            onGetImageError(cacheKey, error);
+  /**
+   * Attaches the container to the in-flight request of its size, or starts one.
+   */
+  private void startRequest(ImageContainer imageContainer, int maxWidth, int maxHeight,
+      ScaleType scaleType) {
+    String requestUrl = imageContainer.mRequestUrl;
+    String cacheKey = imageContainer.mCacheKey;
+    Priority priority = imageContainer.mPriority;
+
+    while (true) {
+      // Check to see if a request is already in-flight.
+      BatchedImageRequest request = mInFlightRequests.get(cacheKey);
+      if (request != null) {
+        // If it is, add this request to the list of listeners. That fails if it just finished or
+        // was canceled, start a new one then.
+        if (request.addContainer(imageContainer)) {
+          return;
+        }
+        mInFlightRequests.remove(cacheKey, request);
+        continue;
+      }
+
+      // The request is not already in flight. Track it before starting any work.
+      ImageRequest newRequest = cacheKey.startsWith(TILED_KEY_PREFIX)
+          ? makeTiledRequest(requestUrl, cacheKey)
+          : makeImageRequest(requestUrl, maxWidth, maxHeight, scaleType, cacheKey);
+      newRequest.setPriority(priority);
+      BatchedImageRequest batchedRequest = new BatchedImageRequest(newRequest, imageContainer);
+      if (mInFlightRequests.putIfAbsent(cacheKey, batchedRequest) != null) {
+        // Another thread started the same request meanwhile, join it.
+        continue;
+      }
+
+      // If a larger size of the url is in memory, scale it down instead of decoding the original.
+      // The variants are acquired so that they stay out of the bitmap pool while being scaled.
+      List<Bitmap> variants = mCache.getAndAcquireVariants(requestUrl);
+      Bitmap variant = newRequest.findVariant(variants);
+      for (Bitmap other : variants) {
+        if (other != variant) {
+          mCache.releaseBitmap(other);
+        }
+      }
+      if (variant != null) {
+        mVariantHitCount.incrementAndGet();
+        deriveFromVariant(newRequest, variant);
+        return;
+      }
+
+      // Otherwise attach a decode for this size to the fetch of the url, starting the fetch if no
+      // other size is loading it.
+      batchedRequest.setFetch(attachToFetch(requestUrl, newRequest));
+      return;
+    }
+  }
+
+  /**
+   * Scales the acquired variant down for the request, and releases it.
+   */
+  private void deriveFromVariant(final ImageRequest request, final Bitmap variant) {
+    PriorityTask task = new PriorityTask(request.getPriority()) {
+      @Override
+      public void run() {
+        request.setTask(null);
+        try {
+          if (!request.deliverVariant(variant)) {
+            request.deliverError(new Exception("scale bitmap fail"));
           }
-        },
+        } finally {
+          mCache.releaseBitmap(variant);
+        }
+      }
+
+      @Override
+      public boolean isCanceled() {
+        return request.isCanceled();
+      }
+
+      @Override
+      protected void onDropped() {
+        request.setTask(null);
+        mCache.releaseBitmap(variant);
+        request.deliverError(new RejectedExecutionException("too many images are loading"));
+      }
+    };
+    request.setTask(task);
+    ConcurrentExecutor.getDecodeExecutor().execute(task);
+  }
+
+  /**
+   * Adds the request to the in-flight fetch of its url, or starts a new fetch.
+   */
+  private FetchRequest attachToFetch(String requestUrl, ImageRequest request) {
+    while (true) {
+      FetchRequest fetch = mInFlightFetches.get(requestUrl);
+      if (fetch != null) {
+        if (fetch.addRequest(request)) {
+          return fetch;
+        }
+        // It already handed out its bytes.
+        mInFlightFetches.remove(requestUrl, fetch);
+        continue;
+      }
+      Call call = mHttpClient.newCall(new Request.Builder().url(requestUrl).build());
+      fetch = new FetchRequest(requestUrl, call, mAsyncFetch, mCache, mFetchListener);
+      fetch.addRequest(request);
+      if (mInFlightFetches.putIfAbsent(requestUrl, fetch) == null) {
+        fetch.start();
+        return fetch;
+      }
+    }
+  }
+
+  protected ImageRequest makeImageRequest(
+      final String requestUrl, int maxWidth, int maxHeight, ScaleType scaleType,
+      final String cacheKey) {
+    InFlightListener listener = new InFlightListener(requestUrl, cacheKey);
+    ImageRequest request = new ImageRequest(
+        requestUrl,
+        listener,
         maxWidth,
         maxHeight,
         scaleType,
         Config.RGB_565,
-        call,
-        mCache);
+        mCache.getBitmapPool());
+    request.setSinglePassDecode(mSinglePassDecode);
+    listener.mRequest = request;
+    return request;
+  }
+
+  protected ImageRequest makeTiledRequest(final String requestUrl, final String cacheKey) {
+    // Cached under the key, so that the url's own drawable is not replaced.
+    InFlightListener listener = new InFlightListener(cacheKey, cacheKey);
+    ImageRequest request = new TiledImageRequest(requestUrl, listener, mCache, Config.RGB_565);
+    listener.mRequest = request;
+    return request;
+  }
+
+  /**
+   * Hands the response of a request to the batch that was started with it.
+   */
+  private class InFlightListener implements ResponseListener {
+
+    /**
+     * The url a drawable response is shared under.
+     */
+    private final String mDrawableUrl;
+    private final String mCacheKey;
+    /**
+     * Set right after the request is made, before it is started.
+     */
+    private volatile ImageRequest mRequest;
+
+    InFlightListener(String drawableUrl, String cacheKey) {
+      mDrawableUrl = drawableUrl;
+      mCacheKey = cacheKey;
+    }
+
+    @Override
+    public void onDrawableResponse(Drawable drawable) {
+      onGetDrawableSuccess(mRequest, mDrawableUrl, mCacheKey, drawable);
+    }
+
+    @Override
+    public void onBitmapResponse(Bitmap response) {
+      onGetImageSuccess(mRequest, mCacheKey, response);
+    }
+
+    @Override
+    public void onErrorResponse(Exception error) {
+      onGetImageError(mRequest, mCacheKey, error);
+    }
   }
 
   /**
-   * Sets the amount of time to wait after the first response arrives before delivering all
-   * responses. Batching can be disabled entirely by passing in 0.
+   * Sets the amount of time to wait after a response arrives before it is queued for delivery.
+   * Responses are delivered on the next frame by default, so this is 0.
    *
    * @param newBatchedResponseDelayMs The time in milliseconds to wait.
    */
@@ -290,115 +677,281 @@ public class ImageLoader {
     mBatchResponseDelayMs = newBatchedResponseDelayMs;
   }
 
-  protected void onGetDrawableSuccess(String cacheKey, Drawable response) {
-    BatchedImageRequest request = mInFlightRequests.remove(cacheKey);
+  /**
+   * Downloads through OkHttp's asynchronous dispatcher ({@link Call#enqueue}) instead of blocking a
+   * thread of {@link ConcurrentExecutor#get()} for the whole round trip. The dispatcher's {@code
+   * maxRequests} and {@code maxRequestsPerHost} limits then apply. Affects requests started
+   * afterwards.
+   */
+  public void setAsyncFetch(boolean asyncFetch) {
+    mAsyncFetch = asyncFetch;
+  }
+
+  /**
+   * Sets whether images are scaled to the requested size in the same pass that decodes them, on by
+   * default. Affects requests started afterwards.
+   */
+  public void setSinglePassDecode(boolean singlePassDecode) {
+    mSinglePassDecode = singlePassDecode;
+  }
+
+  /**
+   * Sets how much of each frame may be spent delivering responses. Whatever doesn't fit is
+   * delivered on the following frames.
+   *
+   * @param frameBudgetMs The time in milliseconds per frame.
+   */
+  public void setDeliveryFrameBudget(int frameBudgetMs) {
+    mDelivery.setFrameBudget(frameBudgetMs);
+  }
+
+  /**
+   * Turns the animation of every drawable of this loader on or off, e.g. for battery saving or
+   * reduced motion. Drawables still show their current frame while off.
+   */
+  @AnyThread
+  public void setAnimationsEnabled(boolean enabled) {
+    List<Drawable> animations;
+    synchronized (mVisibleAnimations) {
+      if (mAnimationsEnabled == enabled) {
+        return;
+      }
+      mAnimationsEnabled = enabled;
+      animations = new ArrayList<>(mVisibleAnimations.keySet());
+    }
+    for (Drawable animation : animations) {
+      if (enabled) {
+        ((Animatable) animation).start();
+      } else {
+        ((Animatable) animation).stop();
+      }
+    }
+  }
+
+  public boolean areAnimationsEnabled() {
+    synchronized (mVisibleAnimations) {
+      return mAnimationsEnabled;
+    }
+  }
+
+  /**
+   * Returns how many animated drawables are running, i.e. are shown by at least one visible view.
+   */
+  public int getRunningAnimationCount() {
+    synchronized (mVisibleAnimations) {
+      return mAnimationsEnabled ? mVisibleAnimations.size() : 0;
+    }
+  }
+
+  /**
+   * Counts a view showing the drawable becoming visible or hidden. The drawable runs while at
+   * least one of them is visible.
+   */
+  private void onAnimationVisibilityChanged(Drawable drawable, boolean visible) {
+    if (!(drawable instanceof Animatable)) {
+      return;
+    }
+    boolean start = false;
+    boolean stop = false;
+    synchronized (mVisibleAnimations) {
+      Integer count = mVisibleAnimations.get(drawable);
+      if (visible) {
+        mVisibleAnimations.put(drawable, count == null ? 1 : count + 1);
+        start = count == null && mAnimationsEnabled;
+      } else if (count != null) {
+        if (count > 1) {
+          mVisibleAnimations.put(drawable, count - 1);
+        } else {
+          mVisibleAnimations.remove(drawable);
+          stop = true;
+        }
+      }
+    }
+    if (start) {
+      ((Animatable) drawable).start();
+    } else if (stop) {
+      ((Animatable) drawable).stop();
+    }
+  }
+
+  /**
+   * Returns how many requests have been made through this loader.
+   */
+  public int getRequestCount() {
+    return mRequestCount.get();
+  }
+
+  /**
+   * Returns how many requests were served synchronously from the memory cache. Together with
+   * {@link #getRequestCount()} this gives the fast-path hit rate.
+   */
+  public int getMemoryHitCount() {
+    return mMemoryHitCount.get();
+  }
+
+  /**
+   * Returns how many requests were scaled down from a larger size already in memory.
+   */
+  public int getVariantHitCount() {
+    return mVariantHitCount.get();
+  }
+
+  /**
+   * Removes the batch of the request from the in-flight requests. A batch that was canceled and
+   * replaced by a new one for the same key stays.
+   *
+   * @return null if the batch of the request is no longer in flight.
+   */
+  private BatchedImageRequest removeInFlightRequest(String cacheKey, ImageRequest imageRequest) {
+    BatchedImageRequest request = mInFlightRequests.get(cacheKey);
+    if (request == null || request.mRequest != imageRequest
+        || !mInFlightRequests.remove(cacheKey, request)) {
+      return null;
+    }
+    return request;
+  }
+
+  protected void onGetDrawableSuccess(ImageRequest imageRequest, String requestUrl,
+      String cacheKey, Drawable response) {
+    BatchedImageRequest request = removeInFlightRequest(cacheKey, imageRequest);
+
+    // Views showing the url share one drawable, another size of the url may have decoded it
+    // first. Held right away, so that it is not recycled before it is delivered.
+    Drawable cachedDrawable = mCache.getAndAcquireDrawable(requestUrl);
+    if (cachedDrawable != null) {
+      if (cachedDrawable != response) {
+        DecoderRegistry.recycle(response);
+        response = cachedDrawable;
+      }
+      if (request == null) {
+        // no one waits for it anymore.
+        mCache.releaseDrawable(cachedDrawable, /* view= */ null);
+      }
+    } else {
+      if (response instanceof Animatable) {
+        // Runs only while a visible view shows it, see ImageContainer#setAnimationVisible.
+        ((Animatable) response).stop();
+      }
+      if (request != null) {
+        // keep the drawable from being recycled until it is delivered.
+        mCache.acquireDrawable(response);
+      }
+      // keep the drawable in memory so the next bind can be served synchronously.
+      mCache.putDrawable(requestUrl, response);
+    }
+
     if (request != null) {
       // Update the response drawable.
       request.mResponseDrawable = response;
       // Send the batched response
-      mBatchedResponses.put(cacheKey, request);
-      mHandler.postDelayed(new Runnable() {
-        @Override
-        public void run() {
-          for (BatchedImageRequest bir : mBatchedResponses.values()) {
-            for (ImageContainer container : bir.mContainers) {
-              if (container.mListener == null) {
-                continue;
-              }
-              if (bir.getError() == null) {
-                container.mDrawable = bir.mResponseDrawable;
-                container.mListener.onDrawable(container, false);
-              } else {
-                container.mListener.onError(bir.getError());
-              }
-            }
-          }
-          mBatchedResponses.clear();
-        }
-      }, mBatchResponseDelayMs);
+      batchResponse(request);
     }
   }
 
   /**
    * Handler for when an image was successfully loaded.
    *
+   * @param imageRequest The request that loaded the image.
    * @param cacheKey The cache key that is associated with the image request.
    * @param response The bitmap that was returned from the network.
    */
-  protected void onGetImageSuccess(String cacheKey, Bitmap response) {
-    // cache the image that was fetched.
-    mCache.putBitmap(cacheKey, response);
-
+  protected void onGetImageSuccess(ImageRequest imageRequest, String cacheKey, Bitmap response) {
     // remove the request from the list of in-flight requests.
-    BatchedImageRequest request = mInFlightRequests.remove(cacheKey);
+    BatchedImageRequest request = removeInFlightRequest(cacheKey, imageRequest);
+
+    // cache the image that was fetched. Sizes that keep the aspect ratio are also indexed by url
+    // so that smaller sizes can be derived from them.
+    if (request != null) {
+      // keep the bitmap out of the bitmap pool until it is delivered.
+      mCache.acquireBitmap(response);
+    }
+    if (imageRequest.keepsAspectRatio()) {
+      mCache.putVariant(imageRequest.getUrl(), cacheKey, response);
+    } else {
+      mCache.putBitmap(cacheKey, response);
+    }
 
     if (request != null) {
       // Update the response bitmap.
       request.mResponseBitmap = response;
 
       // Send the batched response
-      batchResponse(cacheKey, request);
+      batchResponse(request);
     }
   }
 
   /**
    * Handler for when an image failed to load.
    *
+   * @param imageRequest The request that failed.
    * @param cacheKey The cache key that is associated with the image request.
    */
-  protected void onGetImageError(String cacheKey, Exception error) {
+  protected void onGetImageError(ImageRequest imageRequest, String cacheKey, Exception error) {
     // Notify the requesters that something failed via a null result.
     // Remove this request from the list of in-flight requests.
-    BatchedImageRequest request = mInFlightRequests.remove(cacheKey);
+    BatchedImageRequest request = removeInFlightRequest(cacheKey, imageRequest);
 
     if (request != null) {
       // Set the error for this request
       request.setError(error);
 
       // Send the batched response
-      batchResponse(cacheKey, request);
+      batchResponse(request);
     }
   }
 
   /**
-   * Starts the runnable for batched delivery of responses if it is not already started.
+   * Queues a response for delivery on the main thread, starting with the next frame. May be called
+   * from any thread.
    *
-   * @param cacheKey The cacheKey of the response being delivered.
    * @param request The BatchedImageRequest to be delivered.
    */
-  private void batchResponse(String cacheKey, BatchedImageRequest request) {
-    mBatchedResponses.put(cacheKey, request);
-    // If we don't already have a batch delivery runnable in flight, make a new one.
-    // Note that this will be used to deliver responses to all callers in mBatchedResponses.
-    if (mRunnable == null) {
-      mRunnable =
-          new Runnable() {
-            @Override
-            public void run() {
-              for (BatchedImageRequest bir : mBatchedResponses.values()) {
-                for (ImageContainer container : bir.mContainers) {
-                  // If one of the callers in the batched request canceled the
-                  // request
-                  // after the response was received but before it was delivered,
-                  // skip them.
-                  if (container.mListener == null) {
-                    continue;
-                  }
-                  if (bir.getError() == null) {
-                    container.mBitmap = bir.mResponseBitmap;
-                    container.mListener.onResponse(container, false);
-                  } else {
-                    container.mListener.onError(bir.getError());
-                  }
-                }
-              }
-              mBatchedResponses.clear();
-              mRunnable = null;
-            }
-          };
-      // Post the runnable.
-      mHandler.postDelayed(mRunnable, mBatchResponseDelayMs);
+  private void batchResponse(final BatchedImageRequest request) {
+    // No one can join the request anymore, the containers delivered to are final.
+    request.markCompleted();
+    Runnable enqueue = new Runnable() {
+      @Override
+      public void run() {
+        mBatchedResponses.add(request);
+        mDelivery.schedule();
+      }
+    };
+    if (mBatchResponseDelayMs > 0) {
+      mHandler.postDelayed(enqueue, mBatchResponseDelayMs);
+    } else {
+      mHandler.post(enqueue);
+    }
+  }
+
+  /**
+   * Delivers the oldest pending response to its containers.
+   *
+   * @return false if no response was pending.
+   */
+  @MainThread
+  private boolean deliverNextResponse() {
+    BatchedImageRequest bir = mBatchedResponses.poll();
+    if (bir == null) {
+      return false;
+    }
+    for (ImageContainer container : bir.getContainers()) {
+      // If one of the callers in the batched request canceled the request after the response was
+      // received but before it was delivered, skip them.
+      if (container.mListener == null || container.mCanceled) {
+        continue;
+      }
+      if (bir.getError() != null) {
+        container.mListener.onError(bir.getError());
+      } else if (bir.mResponseDrawable != null) {
+        if (container.setDrawable(bir.mResponseDrawable)) {
+          container.mListener.onDrawable(container, false);
+        }
+      } else if (container.setBitmap(bir.mResponseBitmap)) {
+        container.mListener.onResponse(container, false);
+      }
     }
+    bir.releaseResponseBitmap(mCache);
+    return true;
   }
 
   /**
@@ -412,10 +965,97 @@ public class ImageLoader {
 
     void putBitmap(String url, Bitmap bitmap);
 
+    /**
+     * Returns the bitmap only if it is held in memory. Called on the main thread, so it must not
+     * fall back to the disk.
+     */
+    Bitmap getMemoryBitmap(String url);
+
+    /**
+     * Like {@link #getMemoryBitmap(String)} followed by {@link #acquireBitmap(Bitmap)}, but an
+     * eviction in between can't hand the bitmap to the pool.
+     */
+    Bitmap getAndAcquireBitmap(String url);
+
+    /**
+     * Returns the animated drawable for the url only if it is held in memory.
+     */
+    Drawable getMemoryDrawable(String url);
+
+    /**
+     * Like {@link #getMemoryDrawable(String)} followed by {@link #acquireDrawable(Drawable)}, but
+     * an eviction in between can't recycle the drawable.
+     */
+    Drawable getAndAcquireDrawable(String url);
+
+    /**
+     * Marks a bitmap as displayed, it must not be reused until every acquire was released.
+     */
+    void acquireBitmap(Bitmap bitmap);
+
+    void releaseBitmap(Bitmap bitmap);
+
+    /**
+     * Returns the pool decodes reuse bitmaps from, or null if bitmaps are not pooled.
+     */
+    BitmapPool getBitmapPool();
+
+    /**
+     * Stores a decoded size of {@code url} under {@code key}, and indexes it by url so that other
+     * sizes can be derived from it.
+     */
+    void putVariant(String url, String key, Bitmap bitmap);
+
+    /**
+     * Returns the sizes of {@code url} currently held in memory. Must not block.
+     */
+    List<Bitmap> getVariants(String url);
+
+    /**
+     * Returns the sizes of {@code url} currently held in memory, each acquired as by {@link
+     * #getAndAcquireBitmap(String)}. The caller releases them.
+     */
+    List<Bitmap> getAndAcquireVariants(String url);
+
+    /**
+     * Stores an animated drawable of {@code url}, it shares the memory budget of the bitmaps.
+     */
+    void putDrawable(String url, Drawable drawable);
+
+    /**
+     * Marks an animated drawable as displayed, it must not be recycled until every acquire was
+     * released.
+     */
+    void acquireDrawable(Drawable drawable);
+
+    /**
+     * Lets an acquired drawable animate in {@code view} as well as in the other views showing it.
+     * The view is the {@link SharedDrawableWrapper} it shows the drawable through.
+     */
+    void attachDrawable(Drawable drawable, Drawable.Callback view);
+
+    /**
+     * Releases an acquire, and detaches {@code view} if it is not null.
+     */
+    void releaseDrawable(Drawable drawable, Drawable.Callback view);
+
+    /**
+     * Returns the file holding the original bytes of {@code url}, or null. The file may be evicted
+     * at any time, readers must handle it disappearing.
+     */
+    File getFile(String url);
 
-    byte[] getFile(String url);
+    /**
+     * Returns an editor to stream the original bytes of {@code url} into. They are only visible
+     * through {@link #getFile(String)} once committed.
+     */
+    DiskLruCache.Editor editFile(String url) throws IOException;
 
-    void putFile(String url, byte[] bytes);
+    /**
+     * Commits a file written through {@link #editFile(String)} in the background. It may be dropped
+     * if too many commits are pending, the url is downloaded again then.
+     */
+    void commitFile(String url, DiskLruCache.Editor editor);
   }
 
   /**
@@ -447,6 +1087,24 @@ public class ImageLoader {
     void onError(Exception exception);
   }
 
+  /**
+   * A request that waits for its tag to be resumed.
+   */
+  private static class DeferredRequest {
+
+    private final ImageContainer mContainer;
+    private final int mMaxWidth;
+    private final int mMaxHeight;
+    private final ScaleType mScaleType;
+
+    DeferredRequest(ImageContainer container, int maxWidth, int maxHeight, ScaleType scaleType) {
+      mContainer = container;
+      mMaxWidth = maxWidth;
+      mMaxHeight = maxHeight;
+      mScaleType = scaleType;
+    }
+  }
+
   /**
    * Wrapper class used to map a Request to the set of active ImageContainer objects that are
    * interested in its results.
@@ -457,11 +1115,24 @@ public class ImageLoader {
      * The request being tracked
      */
     private final ImageRequest mRequest;
-    private final Call mCall;
     /**
-     * List of all of the active ImageContainers that are interested in the request
+     * The fetch of the url, shared with the other sizes of the same url. Null if the request was
+     * derived from a size already in memory.
+     */
+    private FetchRequest mFetch;
+    /**
+     * List of all of the active ImageContainers that are interested in the request. Guarded by
+     * {@code this} like the fields below, containers join and leave from any thread.
      */
     private final List<ImageContainer> mContainers = new ArrayList<>();
+    /**
+     * Set once the response was handed to the main thread.
+     */
+    private boolean mCompleted;
+    /**
+     * Set once the last container left.
+     */
+    private boolean mCanceled;
     /**
      * The result of the request being tracked by this item
      */
@@ -476,13 +1147,13 @@ public class ImageLoader {
     /**
      * Constructs a new BatchedImageRequest object
      *
-     * @param call The call being tracked
+     * @param request The decode being tracked
      * @param container The ImageContainer of the person who initiated the call.
      */
-    public BatchedImageRequest(ImageRequest request, Call call, ImageContainer container) {
+    public BatchedImageRequest(ImageRequest request, ImageContainer container) {
       mRequest = request;
-      mCall = call;
       mContainers.add(container);
+      container.mBatchedRequest = this;
     }
 
     /**
@@ -499,26 +1170,92 @@ public class ImageLoader {
       mError = error;
     }
 
+    /**
+     * Releases the hold on the response that kept it out of the pool until delivery.
+     */
+    private void releaseResponseBitmap(ImageCache cache) {
+      if (mResponseBitmap != null) {
+        cache.releaseBitmap(mResponseBitmap);
+      }
+      if (mResponseDrawable != null) {
+        cache.releaseDrawable(mResponseDrawable, /* view= */ null);
+      }
+    }
+
     /**
      * Adds another ImageContainer to the list of those interested in the results of the request.
+     *
+     * @return false if the request already completed or was canceled, the container was not added.
      */
-    public void addContainer(ImageContainer container) {
+    public synchronized boolean addContainer(ImageContainer container) {
+      if (mCompleted || mCanceled) {
+        return false;
+      }
       mContainers.add(container);
+      container.mBatchedRequest = this;
+      updatePriority();
+      return true;
+    }
+
+    /**
+     * Attaches the fetch the request waits for, detaching it again if everyone left meanwhile.
+     */
+    private synchronized void setFetch(FetchRequest fetch) {
+      mFetch = fetch;
+      if (mCanceled) {
+        fetch.removeRequest(mRequest);
+      }
+    }
+
+    private synchronized void markCompleted() {
+      mCompleted = true;
+    }
+
+    private synchronized List<ImageContainer> getContainers() {
+      return new ArrayList<>(mContainers);
+    }
+
+    /**
+     * Runs the request at the highest priority of the containers waiting for it.
+     */
+    private synchronized void updatePriority() {
+      Priority highest = null;
+      for (ImageContainer container : mContainers) {
+        if (highest == null || container.mPriority.compareTo(highest) < 0) {
+          highest = container.mPriority;
+        }
+      }
+      if (highest == null || highest == mRequest.getPriority()) {
+        return;
+      }
+      mRequest.setPriority(highest);
+      if (mFetch != null) {
+        mFetch.updatePriority();
+      }
     }
 
     /**
      * Detaches the bitmap container from the request and cancels the request if no one is left
-     * listening.
+     * listening. The download is only canceled once no other size of the url needs it.
      *
      * @param container The container to remove from the list
      * @return True if the request was canceled, false otherwise.
      */
-    public boolean removeContainerAndCancelIfNecessary(ImageContainer container) {
-      mContainers.remove(container);
+    public synchronized boolean removeContainerAndCancelIfNecessary(ImageContainer container) {
+      if (!mContainers.remove(container) || mCompleted) {
+        // A completed request delivers to whoever is left, skipping canceled containers.
+        return false;
+      }
       if (mContainers.size() == 0) {
-        mCall.cancel();
+        mCanceled = true;
+        // Stops a queued or running decode of this size.
+        mRequest.cancel();
+        if (mFetch != null) {
+          mFetch.removeRequest(mRequest);
+        }
         return true;
       }
+      updatePriority();
       return false;
     }
   }
@@ -542,8 +1279,24 @@ public class ImageLoader {
      * the final bitmap (the one that pairs to the requested URL).
      */
     private Bitmap mBitmap;
+    private boolean mBitmapReleased;
+    /**
+     * Set once the caller canceled, a response that is already on its way is not delivered.
+     */
+    private volatile boolean mCanceled;
+    private volatile Priority mPriority = Priority.VISIBLE;
+    private Object mTag;
+    /**
+     * The request this container waits for, null while it is deferred or if it was a cache hit.
+     */
+    private volatile BatchedImageRequest mBatchedRequest;
 
     private Drawable mDrawable;
+    /**
+     * What the view shows of the drawable, detached or recycled again on release.
+     */
+    private Drawable mDrawableView;
+    private boolean mAnimationVisible;
 
     /**
      * Constructs a BitmapContainer object.
@@ -564,27 +1317,137 @@ public class ImageLoader {
     /**
      * Releases interest in the in-flight request (and cancels it if no one else is listening).
      *
-     * <p>Must be called from the main thread.
+     * <p>May be called from any thread.
      */
-    @MainThread
+    @AnyThread
     public void cancelRequest() {
-      if (mListener == null) {
+      synchronized (this) {
+        releaseBitmap();
+        if (mListener == null) {
+          return;
+        }
+        mCanceled = true;
+      }
+      synchronized (mDeferredRequests) {
+        if (mDeferredRequests.remove(this) != null) {
+          // Never started.
+          return;
+        }
+      }
+      BatchedImageRequest request = mBatchedRequest;
+      if (request != null && request.removeContainerAndCancelIfNecessary(this)) {
+        mInFlightRequests.remove(mCacheKey, request);
+      }
+    }
+
+    /**
+     * Changes how urgently the image is needed, e.g. when its view scrolls on or off screen. Has no
+     * effect once the request finished.
+     *
+     * <p>May be called from any thread.
+     */
+    @AnyThread
+    public void setPriority(Priority priority) {
+      if (mListener == null || mPriority == priority) {
         return;
       }
-      BatchedImageRequest request = mInFlightRequests.get(mCacheKey);
+      mPriority = priority;
+      BatchedImageRequest request = mBatchedRequest;
       if (request != null) {
-        boolean canceled = request.removeContainerAndCancelIfNecessary(this);
-        if (canceled) {
-          mInFlightRequests.remove(mCacheKey);
+        request.updatePriority();
+      }
+    }
+
+    public Priority getPriority() {
+      return mPriority;
+    }
+
+    /**
+     * Takes a hold on the response bitmap.
+     *
+     * @return false if the container was canceled, nothing is held then.
+     */
+    private synchronized boolean setBitmap(Bitmap bitmap) {
+      if (mCanceled) {
+        return false;
+      }
+      mBitmap = bitmap;
+      mCache.acquireBitmap(bitmap);
+      return true;
+    }
+
+    /**
+     * Takes a hold on the response drawable.
+     *
+     * @return false if the container was canceled, nothing is held then.
+     */
+    private synchronized boolean setDrawable(Drawable drawable) {
+      if (mCanceled) {
+        return false;
+      }
+      mDrawable = drawable;
+      mCache.acquireDrawable(drawable);
+      return true;
+    }
+
+    /**
+     * Returns what one view shows of the drawable, e.g. for {@link
+     * ImageView#setImageDrawable(Drawable)}. Other views may show the same drawable, it keeps
+     * animating in all of them. What the view does to it, such as hiding it, stays with that view,
+     * see {@link SharedDrawableWrapper}. A {@link TiledDrawable} gets a view of its own, see {@link
+     * TiledDrawable#newView()}.
+     *
+     * @return null if there is no drawable or it was released.
+     */
+    public synchronized Drawable attachDrawable() {
+      if (mDrawable == null || mBitmapReleased) {
+        return null;
+      }
+      if (mDrawableView == null) {
+        if (mDrawable instanceof TiledDrawable) {
+          // Tiles depend on the zoom and bounds of the view, only the decoder is shared.
+          mDrawableView = ((TiledDrawable) mDrawable).newView();
+        } else {
+          SharedDrawableWrapper wrapper = new SharedDrawableWrapper(mDrawable);
+          mCache.attachDrawable(mDrawable, wrapper);
+          mDrawableView = wrapper;
         }
-      } else {
-        // check to see if it is already batched for delivery.
-        request = mBatchedResponses.get(mCacheKey);
-        if (request != null) {
-          request.removeContainerAndCancelIfNecessary(this);
-          if (request.mContainers.size() == 0) {
-            mBatchedResponses.remove(mCacheKey);
-          }
+      }
+      return mDrawableView;
+    }
+
+    /**
+     * Tells whether the view showing the drawable is visible on screen. An animated drawable runs
+     * while at least one view showing it is, and while animations are enabled, see {@link
+     * #setAnimationsEnabled(boolean)}.
+     */
+    @AnyThread
+    public synchronized void setAnimationVisible(boolean visible) {
+      if (mDrawable == null || mBitmapReleased || mAnimationVisible == visible) {
+        return;
+      }
+      mAnimationVisible = visible;
+      onAnimationVisibilityChanged(mDrawable, visible);
+    }
+
+    /**
+     * Lets the bitmap be reused, or the drawable be recycled, once no one else displays it.
+     */
+    private synchronized void releaseBitmap() {
+      if (mBitmapReleased) {
+        return;
+      }
+      setAnimationVisible(false);
+      if (mBitmap != null) {
+        mBitmapReleased = true;
+        mCache.releaseBitmap(mBitmap);
+      } else if (mDrawable != null) {
+        mBitmapReleased = true;
+        if (mDrawableView instanceof TiledDrawable) {
+          ((TiledDrawable) mDrawableView).recycle();
+          mCache.releaseDrawable(mDrawable, null);
+        } else {
+          mCache.releaseDrawable(mDrawable, (SharedDrawableWrapper) mDrawableView);
         }
       }
     }
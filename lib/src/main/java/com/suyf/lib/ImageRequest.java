@@ -16,23 +16,25 @@
 
 package com.suyf.lib;
 
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.widget.ImageView.ScaleType;
-import com.suyf.lib.ImageLoader.ImageCache;
-import okhttp3.Call;
-import okhttp3.Response;
-import pl.droidsonroids.gif.GifDrawable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 
 /**
  * A canned request for getting an image at a given URL and calling back with a decoded Bitmap.
  */
 public class ImageRequest {
 
-  private static final Object sDecodeLock = new Object();
-
   private final Config mDecodeConfig;
   private final int mMaxWidth;
   private final int mMaxHeight;
@@ -40,6 +42,20 @@ public class ImageRequest {
 
   private String mUrl;
   private ResponseListener mResponseListener;
+  private final BitmapPool mBitmapPool;
+  private volatile Priority mPriority = Priority.VISIBLE;
+  /**
+   * The queued task that will decode this request, if it was queued on its own.
+   */
+  private volatile PriorityTask mTask;
+  /**
+   * Canceled once no one waits for the image anymore, checked before every step of the decode.
+   */
+  private final CancellationToken mToken = new CancellationToken();
+  /**
+   * Whether the decoder scales to the final size itself, see {@link #setSinglePassDecode(boolean)}.
+   */
+  private boolean mSinglePassDecode = true;
 
   /**
    * Creates a new image request, decoding to a maximum specified width and height. If both width
@@ -48,12 +64,15 @@ public class ImageRequest {
    * aspect ratio. If both width and height are nonzero, the image will be decoded to be fit in the
    * rectangle of dimensions width x height while keeping its aspect ratio.
    *
+   * <p>The encoded bytes are fetched by a {@link FetchRequest} shared by every size of the url.
+   *
    * @param url URL of the image
    * @param responseListener Listener to receive the decoded bitmap
    * @param maxWidth Maximum width to decode this bitmap to, or zero for none
    * @param maxHeight Maximum height to decode this bitmap to, or zero for none
    * @param scaleType The ImageViews ScaleType used to calculate the needed image size.
    * @param decodeConfig Format to decode the bitmap to
+   * @param bitmapPool Pool to reuse bitmaps from while decoding, or null
    */
   public ImageRequest(
       String url,
@@ -62,78 +81,217 @@ public class ImageRequest {
       int maxHeight,
       ScaleType scaleType,
       Config decodeConfig,
-      final Call call,
-      final ImageCache cache) {
+      BitmapPool bitmapPool) {
     mUrl = url;
+    mBitmapPool = bitmapPool;
     mResponseListener = responseListener;
     mDecodeConfig = decodeConfig;
     mMaxWidth = maxWidth;
     mMaxHeight = maxHeight;
     mScaleType = scaleType;
+  }
 
-    ConcurrentExecutor.get().execute(new Runnable() {
-      @Override
-      public void run() {
-        Bitmap cacheBitmap = cache.getBitmap(mUrl);
-        if (cacheBitmap != null) {
-          mResponseListener.onBitmapResponse(cacheBitmap);
-          return;
-        }
-        boolean support = supportDrawable();
-        if (support) {
-          try {
-            byte[] cacheFile = cache.getFile(mUrl);
-            if (cacheFile != null) {
-              Drawable drawable = new GifDrawable(cacheFile);
-              mResponseListener.onDrawableResponse(drawable);
-              return;
-            }
-          } catch (Exception e) {
-          }
-        }
-        Response response = null;
-        try {
-          response = call.execute();
-          byte[] bytes = response.body().bytes();
-          try {
-            if (support) {
-              Drawable drawable = new GifDrawable(bytes);
-              cache.putFile(mUrl, bytes);
-              mResponseListener.onDrawableResponse(drawable);
-            } else {
-              throw new Exception("not support");
-            }
-          } catch (Exception e) {
-            Bitmap bitmap = parseNetworkResponse(bytes);
-            if (bitmap != null) {
-              mResponseListener.onBitmapResponse(bitmap);
-            } else {
-              mResponseListener.onErrorResponse(new Exception("parse bitmap fail"));
-            }
-          }
-        } catch (Exception e) {
-          e.printStackTrace();
-          mResponseListener.onErrorResponse(e);
-        } finally {
-          try {
-            response.close();
-          } catch (Exception e) {
+  public String getUrl() {
+    return mUrl;
+  }
+
+  /**
+   * Sets whether images are scaled to the requested size while they are decoded, on by default.
+   * Otherwise they are decoded at the nearest power of two and scaled down in a second pass, which
+   * allocates a bitmap for each step. Must be set before the request is decoded.
+   */
+  public void setSinglePassDecode(boolean singlePassDecode) {
+    mSinglePassDecode = singlePassDecode;
+  }
+
+  public Priority getPriority() {
+    return mPriority;
+  }
+
+  /**
+   * Changes the priority, moving the decode in the queue if it was queued on its own.
+   */
+  public void setPriority(Priority priority) {
+    mPriority = priority;
+    PriorityTask task = mTask;
+    if (task != null) {
+      task.setPriority(priority);
+    }
+  }
+
+  /**
+   * Stops the decode: a queued decode is removed from its executor, a running one stops at its
+   * next step and nothing is delivered.
+   */
+  public void cancel() {
+    mToken.cancel();
+    PriorityTask task = mTask;
+    if (task != null) {
+      task.dequeue();
+    }
+  }
+
+  public boolean isCanceled() {
+    return mToken.isCanceled();
+  }
+
+  /**
+   * Remembers the task that will decode this request so that {@link #setPriority(Priority)} can
+   * move it.
+   */
+  void setTask(PriorityTask task) {
+    mTask = task;
+  }
+
+  /**
+   * Decodes the encoded image and hands it to the listener.
+   *
+   * @return false if the bytes could not be decoded, nothing was delivered in that case. A
+   * canceled request delivers nothing either but returns true, the bytes were not at fault. So does
+   * a request that ran out of memory or was interrupted, it delivers the error itself.
+   */
+  boolean deliverResponse(File file) {
+    if (mToken.isCanceled()) {
+      return true;
+    }
+    // Animations and custom formats, picked by the first bytes of the file.
+    DrawableDecoder decoder = DecoderRegistry.get().find(file);
+    if (decoder != null) {
+      try {
+        Drawable drawable = decoder.decode(file);
+        if (drawable != null) {
+          if (mToken.isCanceled()) {
+            decoder.recycle(drawable);
+            return true;
           }
+          mResponseListener.onDrawableResponse(drawable);
+          return true;
         }
+      } catch (IOException e) {
+        // Try the bitmap decoder, it may still show the first frame.
+      } catch (OutOfMemoryError e) {
+        e.printStackTrace();
+        deliverError(new Exception("out of memory decoding " + getUrl()));
+        return true;
+      }
+    }
+    Bitmap bitmap;
+    try {
+      bitmap = decodeFile(file);
+    } catch (CancellationException e) {
+      return true;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return false;
+    } catch (OutOfMemoryError e) {
+      e.printStackTrace();
+      deliverError(new Exception("out of memory decoding " + getUrl()));
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      deliverError(e);
+      return true;
+    }
+    if (bitmap != null) {
+      if (mToken.isCanceled()) {
+        recycleToPool(bitmap);
+        return true;
       }
-    });
+      mResponseListener.onBitmapResponse(bitmap);
+      return true;
+    }
+    return false;
   }
 
   /**
-   * check if class exit. cannot be confuse.
+   * Returns false if the decoded bitmap is stretched to fill both dimensions, such a bitmap can't
+   * be used to derive other sizes.
    */
-  private boolean supportDrawable() {
-    try {
-      Class.forName("pl.droidsonroids.gif.GifDrawable");
+  boolean keepsAspectRatio() {
+    return mScaleType != ScaleType.FIT_XY || mMaxWidth == 0 || mMaxHeight == 0;
+  }
+
+  /**
+   * Picks the smallest of the given sizes of the url that is larger than this request needs, or
+   * null if none of them is.
+   */
+  Bitmap findVariant(List<Bitmap> variants) {
+    // The natural size can only be decoded from the original.
+    if ((mMaxWidth == 0 && mMaxHeight == 0) || !keepsAspectRatio()) {
+      return null;
+    }
+    Bitmap best = null;
+    for (Bitmap variant : variants) {
+      int width = variant.getWidth();
+      int height = variant.getHeight();
+      int desiredWidth = getResizedDimension(mMaxWidth, mMaxHeight, width, height, mScaleType);
+      int desiredHeight = getResizedDimension(mMaxHeight, mMaxWidth, height, width, mScaleType);
+      if (width < desiredWidth || height < desiredHeight
+          || (width == desiredWidth && height == desiredHeight)) {
+        continue;
+      }
+      if (best == null || width * height < best.getWidth() * best.getHeight()) {
+        best = variant;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Scales a larger size of the url down to this request's size and hands it to the listener.
+   *
+   * @return false if the bitmap could not be scaled, nothing was delivered in that case. A canceled
+   * request delivers nothing either but returns true.
+   */
+  boolean deliverVariant(Bitmap variant) {
+    if (mToken.isCanceled()) {
       return true;
-    } catch (ClassNotFoundException e) {
+    }
+    if (variant.isRecycled()) {
+      return false;
+    }
+    int width = variant.getWidth();
+    int height = variant.getHeight();
+    int desiredWidth = getResizedDimension(mMaxWidth, mMaxHeight, width, height, mScaleType);
+    int desiredHeight = getResizedDimension(mMaxHeight, mMaxWidth, height, width, mScaleType);
+    Bitmap bitmap;
+    long cost = getAllocationSize(desiredWidth, desiredHeight, variant.getConfig());
+    try {
+      DecodeAdmission.get().acquire(cost);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    try {
+      // The wait for admission may have been long.
+      if (mToken.isCanceled()) {
+        return true;
+      }
+      bitmap = Bitmap.createScaledBitmap(variant, desiredWidth, desiredHeight, true);
+    } catch (OutOfMemoryError e) {
       e.printStackTrace();
       return false;
+    } finally {
+      DecodeAdmission.get().release(cost);
+    }
+    if (mToken.isCanceled()) {
+      recycleToPool(bitmap);
+      return true;
+    }
+    mResponseListener.onBitmapResponse(bitmap);
+    return true;
+  }
+
+  private void recycleToPool(Bitmap bitmap) {
+    if (mBitmapPool == null || !mBitmapPool.put(bitmap)) {
+      bitmap.recycle();
+    }
+  }
+
+  void deliverError(Exception error) {
+    // No one waits for a canceled request, its cache key may already belong to a new one.
+    if (!mToken.isCanceled()) {
+      mResponseListener.onErrorResponse(error);
     }
   }
 
@@ -147,11 +305,9 @@ public class ImageRequest {
       ResponseListener responseListener,
       int maxWidth,
       int maxHeight,
-      Config decodeConfig,
-      Call call,
-      ImageCache cache) {
-    this(url, responseListener, maxWidth, maxHeight, ScaleType.CENTER_INSIDE, decodeConfig, call,
-        cache);
+      Config decodeConfig) {
+    this(url, responseListener, maxWidth, maxHeight, ScaleType.CENTER_INSIDE, decodeConfig,
+        null);
   }
 
   /**
@@ -233,34 +389,58 @@ public class ImageRequest {
     return (int) n;
   }
 
-  protected Bitmap parseNetworkResponse(byte[] response) {
-    // Serialize all decode on a global lock to reduce concurrent heap usage.
-    synchronized (sDecodeLock) {
-      try {
-        return doParse(response);
-      } catch (OutOfMemoryError e) {
-        e.printStackTrace();
-      }
-      return null;
+  protected Bitmap parseNetworkResponse(File response) {
+    try {
+      return decodeFile(response);
+    } catch (IOException e) {
+      e.printStackTrace();
+    } catch (OutOfMemoryError e) {
+      e.printStackTrace();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return null;
+  }
+
+  private Bitmap decodeFile(File file) throws IOException, InterruptedException {
+    // Decode through the file descriptor, the encoded bytes are never copied onto the heap.
+    FileInputStream inputStream = new FileInputStream(file);
+    try {
+      return doParse(inputStream.getFD());
+    } finally {
+      DiskLruCache.closeQuietly(inputStream);
     }
   }
 
   /**
    * The real guts of parseNetworkResponse. Broken out for readability.
    */
-  private Bitmap doParse(byte[] data) {
+  private Bitmap doParse(FileDescriptor data) throws InterruptedException {
     BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
     Bitmap bitmap;
+    // First get the natural bounds, the decode is admitted and a pooled bitmap is picked by them.
+    decodeOptions.inJustDecodeBounds = true;
+    BitmapFactory.decodeFileDescriptor(data, null, decodeOptions);
+    int actualWidth = decodeOptions.outWidth;
+    int actualHeight = decodeOptions.outHeight;
+    decodeOptions.inJustDecodeBounds = false;
+    if (actualWidth <= 0 || actualHeight <= 0) {
+      return null;
+    }
+    mToken.throwIfCanceled();
+
     if (mMaxWidth == 0 && mMaxHeight == 0) {
       decodeOptions.inPreferredConfig = mDecodeConfig;
-      bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+      long cost = getAllocationSize(actualWidth, actualHeight, mDecodeConfig);
+      DecodeAdmission.get().acquire(cost);
+      try {
+        // The wait for admission may have been long.
+        mToken.throwIfCanceled();
+        bitmap = decode(data, decodeOptions, actualWidth, actualHeight);
+      } finally {
+        DecodeAdmission.get().release(cost);
+      }
     } else {
-      // If we have to resize this image, first get the natural bounds.
-      decodeOptions.inJustDecodeBounds = true;
-      BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
-      int actualWidth = decodeOptions.outWidth;
-      int actualHeight = decodeOptions.outHeight;
-
       // Then compute the dimensions we would ideally like to decode to.
       int desiredWidth =
           getResizedDimension(mMaxWidth, mMaxHeight, actualWidth, actualHeight, mScaleType);
@@ -268,23 +448,94 @@ public class ImageRequest {
           getResizedDimension(mMaxHeight, mMaxWidth, actualHeight, actualWidth, mScaleType);
 
       // Decode to the nearest power of two scaling factor.
-      decodeOptions.inJustDecodeBounds = false;
       // TODO(ficus): Do we need this or is it okay since API 8 doesn't support it?
       // decodeOptions.inPreferQualityOverSpeed = PREFER_QUALITY_OVER_SPEED;
-      decodeOptions.inSampleSize =
-          findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
-      Bitmap tempBitmap = BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
-
-      // If necessary, scale down to the maximal acceptable size.
-      if (tempBitmap != null
-          && (tempBitmap.getWidth() > desiredWidth || tempBitmap.getHeight() > desiredHeight)) {
-        bitmap = Bitmap.createScaledBitmap(tempBitmap, desiredWidth, desiredHeight, true);
-        tempBitmap.recycle();
-      } else {
-        bitmap = tempBitmap;
+      int sampleSize = findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
+      decodeOptions.inSampleSize = sampleSize;
+      int sampledWidth = (actualWidth + sampleSize - 1) / sampleSize;
+      int sampledHeight = (actualHeight + sampleSize - 1) / sampleSize;
+
+      // The sampled bitmap, plus the scaled one if the sampled one is still too large. A single
+      // pass decode scales through a short-lived buffer of the decoder that costs the same.
+      boolean needsScaling = sampledWidth > desiredWidth || sampledHeight > desiredHeight;
+      long cost = getAllocationSize(sampledWidth, sampledHeight, Config.ARGB_8888);
+      if (needsScaling) {
+        cost += getAllocationSize(desiredWidth, desiredHeight, Config.ARGB_8888);
+      }
+      int decodedWidth = sampledWidth;
+      int decodedHeight = sampledHeight;
+      if (needsScaling && mSinglePassDecode && keepsAspectRatio()) {
+        // Let the decoder scale the sampled image down to the desired size on its own. The
+        // density ratio is taken along the longer side, where rounding matters least.
+        boolean byWidth = sampledWidth >= sampledHeight;
+        decodeOptions.inScaled = true;
+        decodeOptions.inDensity = byWidth ? sampledWidth : sampledHeight;
+        decodeOptions.inTargetDensity = byWidth ? desiredWidth : desiredHeight;
+        decodedWidth = desiredWidth;
+        decodedHeight = desiredHeight;
+      }
+      DecodeAdmission.get().acquire(cost);
+      try {
+        mToken.throwIfCanceled();
+        Bitmap tempBitmap = decode(data, decodeOptions, decodedWidth, decodedHeight);
+
+        // If necessary, scale down to the maximal acceptable size. A single pass decode may be a
+        // pixel off from rounding, that is close enough.
+        if (tempBitmap != null && decodeOptions.inDensity != 0) {
+          // The decoder marks the bitmap with the target density, a pixel size here. Drawn at that
+          // density the bitmap would be scaled again, and sizes derived from it would inherit it.
+          tempBitmap.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
+          bitmap = tempBitmap;
+        } else if (tempBitmap != null
+            && (tempBitmap.getWidth() > desiredWidth || tempBitmap.getHeight() > desiredHeight)) {
+          bitmap = Bitmap.createScaledBitmap(tempBitmap, desiredWidth, desiredHeight, true);
+          recycleToPool(tempBitmap);
+        } else {
+          bitmap = tempBitmap;
+        }
+      } finally {
+        DecodeAdmission.get().release(cost);
       }
     }
     return bitmap;
   }
 
+  private static long getAllocationSize(int width, int height, Config config) {
+    return (long) width * height * BitmapPool.getBytesPerPixel(config);
+  }
+
+  /**
+   * Decodes into a bitmap from the pool when one fits, and into a new mutable bitmap otherwise.
+   * Mutable bitmaps can go back to the pool once they are evicted.
+   *
+   * @param width The width the decoded bitmap will have at most
+   * @param height The height the decoded bitmap will have at most
+   */
+  private Bitmap decode(FileDescriptor data, BitmapFactory.Options options, int width,
+      int height) {
+    options.inMutable = true;
+    // Before KitKat a reused bitmap can't take a scaled decode.
+    boolean canReuse = options.inDensity == 0
+        || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    if (mBitmapPool != null && canReuse && width > 0 && height > 0) {
+      Config config = options.inPreferredConfig != null ? options.inPreferredConfig
+          : Config.ARGB_8888;
+      Bitmap inBitmap = mBitmapPool.get(width, height, config, options.inSampleSize);
+      if (inBitmap != null) {
+        options.inBitmap = inBitmap;
+        try {
+          Bitmap bitmap = BitmapFactory.decodeFileDescriptor(data, null, options);
+          if (bitmap != null) {
+            return bitmap;
+          }
+        } catch (IllegalArgumentException e) {
+          // The pooled bitmap can't hold this image, decode into a new one.
+        }
+        options.inBitmap = null;
+        mBitmapPool.put(inBitmap);
+      }
+    }
+    return BitmapFactory.decodeFileDescriptor(data, null, options);
+  }
+
 }
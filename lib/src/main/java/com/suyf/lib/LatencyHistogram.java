@@ -0,0 +1,73 @@
+package com.suyf.lib;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in exponential buckets: under 1 ms, under 2 ms, under 4 ms and so on up to
+ * 8 s, plus one bucket for everything slower. Recording is lock free.
+ */
+public class LatencyHistogram {
+
+  private static final int BUCKET_COUNT = 15;
+
+  private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+  public void record(long durationMs) {
+    int bucket = 0;
+    while (bucket < BUCKET_COUNT - 1 && durationMs >= getUpperBoundMs(bucket)) {
+      bucket++;
+    }
+    mCounts.incrementAndGet(bucket);
+  }
+
+  public int getBucketCount() {
+    return BUCKET_COUNT;
+  }
+
+  /**
+   * Returns the exclusive upper bound of a bucket, {@link Long#MAX_VALUE} for the last one.
+   */
+  public long getUpperBoundMs(int bucket) {
+    return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+  }
+
+  public long getCount(int bucket) {
+    return mCounts.get(bucket);
+  }
+
+  public long getTotalCount() {
+    long total = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      total += mCounts.get(i);
+    }
+    return total;
+  }
+
+  /**
+   * Returns the upper bound of the bucket holding the given percentile, or 0 if nothing was
+   * recorded.
+   *
+   * @param percentile Between 0 and 100.
+   */
+  public long getPercentileMs(double percentile) {
+    long total = getTotalCount();
+    if (total == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += mCounts.get(i);
+      if (seen >= target) {
+        return getUpperBoundMs(i);
+      }
+    }
+    return getUpperBoundMs(BUCKET_COUNT - 1);
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      mCounts.set(i, 0);
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package com.suyf.lib;
+
+import android.graphics.Bitmap.Config;
+import android.support.annotation.MainThread;
+import android.widget.AbsListView;
+import android.widget.ImageView.ScaleType;
+import com.suyf.lib.ImageLoader.ImageContainer;
+import com.suyf.lib.ImageLoader.ImageListener;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Loads the images of the next rows in the scroll direction into the memory cache at {@link
+ * Priority#PREFETCH}, so they are already there when the rows are bound. At most {@code lookahead}
+ * rows are preloaded, and only as many as fit in the memory budget. Preloads of rows that leave
+ * the window, because they came on screen or the scroll direction changed, are canceled.
+ *
+ * <p>Set it as the scroll listener of an {@link AbsListView}, wrap it in a {@link
+ * RecyclerViewPreloader}, or feed it {@link #onVisibleRangeChanged(int, int, int)} directly.
+ */
+public class ListPreloader implements AbsListView.OnScrollListener {
+
+  /**
+   * Supplies the image to preload for a position.
+   */
+  public interface Provider {
+
+    /**
+     * @return The image shown at the position, or null if there is none.
+     */
+    PreloadRequest getPreloadRequest(int position);
+  }
+
+  /**
+   * An image and the size its view will request it at, it must match for the preload to be used.
+   */
+  public static class PreloadRequest {
+
+    private final String mUrl;
+    private final int mMaxWidth;
+    private final int mMaxHeight;
+    private final ScaleType mScaleType;
+
+    public PreloadRequest(String url, int maxWidth, int maxHeight, ScaleType scaleType) {
+      mUrl = url;
+      mMaxWidth = maxWidth;
+      mMaxHeight = maxHeight;
+      mScaleType = scaleType;
+    }
+  }
+
+  private static final ImageListener NO_OP_LISTENER = new ImageListener() {
+    @Override
+    public void onDrawable(ImageContainer response, boolean isImmediate) {
+    }
+
+    @Override
+    public void onResponse(ImageContainer response, boolean isImmediate) {
+    }
+
+    @Override
+    public void onError(Exception exception) {
+    }
+  };
+
+  private final ImageLoader mImageLoader;
+  private final Provider mProvider;
+  private int mLookahead;
+  private long mMaxBytes;
+  /**
+   * Position -> preload in the current window.
+   */
+  private final HashMap<Integer, Preload> mPreloads = new HashMap<>();
+  private long mBytes;
+  private int mLastFirstVisible = -1;
+  private int mLastVisibleCount;
+  private boolean mScrollingForward = true;
+
+  /**
+   * @param lookahead How many rows past the visible ones to preload.
+   * @param maxBytes How many bytes of decoded bitmaps the preloads may take.
+   */
+  public ListPreloader(ImageLoader imageLoader, Provider provider, int lookahead, long maxBytes) {
+    mImageLoader = imageLoader;
+    mProvider = provider;
+    mLookahead = lookahead;
+    mMaxBytes = maxBytes;
+  }
+
+  public void setLookahead(int lookahead) {
+    mLookahead = lookahead;
+  }
+
+  public void setMaxBytes(long maxBytes) {
+    mMaxBytes = maxBytes;
+  }
+
+  /**
+   * Moves the preload window after the visible rows changed.
+   *
+   * @param firstVisible The first visible position.
+   * @param visibleCount How many positions are visible.
+   * @param itemCount How many positions there are.
+   */
+  @MainThread
+  public void onVisibleRangeChanged(int firstVisible, int visibleCount, int itemCount) {
+    if (firstVisible == mLastFirstVisible && visibleCount == mLastVisibleCount) {
+      return;
+    }
+    if (mLastFirstVisible >= 0 && firstVisible != mLastFirstVisible) {
+      mScrollingForward = firstVisible > mLastFirstVisible;
+    }
+    mLastFirstVisible = firstVisible;
+    mLastVisibleCount = visibleCount;
+
+    int start;
+    int end;
+    if (mScrollingForward) {
+      start = firstVisible + visibleCount;
+      end = Math.min(itemCount, start + mLookahead);
+    } else {
+      end = firstVisible;
+      start = Math.max(0, end - mLookahead);
+    }
+
+    Iterator<Map.Entry<Integer, Preload>> iterator = mPreloads.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Integer, Preload> entry = iterator.next();
+      int position = entry.getKey();
+      if (position < start || position >= end) {
+        cancel(entry.getValue());
+        iterator.remove();
+      }
+    }
+
+    // Nearest rows first.
+    for (int i = 0; i < end - start; i++) {
+      int position = mScrollingForward ? start + i : end - 1 - i;
+      if (mPreloads.containsKey(position)) {
+        continue;
+      }
+      PreloadRequest request = mProvider.getPreloadRequest(position);
+      if (request == null || request.mUrl == null) {
+        continue;
+      }
+      long bytes = estimateBytes(request);
+      if (mBytes + bytes > mMaxBytes) {
+        break;
+      }
+      ImageContainer container = mImageLoader.get(request.mUrl, NO_OP_LISTENER,
+          request.mMaxWidth, request.mMaxHeight, request.mScaleType, Priority.PREFETCH);
+      mPreloads.put(position, new Preload(container, bytes));
+      mBytes += bytes;
+    }
+  }
+
+  /**
+   * Cancels every preload, e.g. when the list goes away.
+   */
+  @MainThread
+  public void cancelAll() {
+    for (Preload preload : mPreloads.values()) {
+      cancel(preload);
+    }
+    mPreloads.clear();
+    mLastFirstVisible = -1;
+  }
+
+  @Override
+  public void onScrollStateChanged(AbsListView view, int scrollState) {
+  }
+
+  @Override
+  public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+      int totalItemCount) {
+    onVisibleRangeChanged(firstVisibleItem, visibleItemCount, totalItemCount);
+  }
+
+  private void cancel(Preload preload) {
+    // Also lets the bitmap go, it stays in the memory cache for the row's own request.
+    preload.mContainer.cancelRequest();
+    mBytes -= preload.mBytes;
+  }
+
+  /**
+   * Bytes of the decoded bitmap. An image without a target size is decoded at its natural size,
+   * which is not known up front, it counts as an equal share of the budget. A sized image is
+   * decoded in the decoder's default config, ARGB_8888, whatever config the loader prefers.
+   */
+  private long estimateBytes(PreloadRequest request) {
+    if (request.mMaxWidth == 0 || request.mMaxHeight == 0) {
+      return mMaxBytes / Math.max(1, mLookahead);
+    }
+    return (long) request.mMaxWidth * request.mMaxHeight
+        * BitmapPool.getBytesPerPixel(Config.ARGB_8888);
+  }
+
+  private static class Preload {
+
+    private final ImageContainer mContainer;
+    private final long mBytes;
+
+    Preload(ImageContainer container, long bytes) {
+      mContainer = container;
+      mBytes = bytes;
+    }
+  }
+}
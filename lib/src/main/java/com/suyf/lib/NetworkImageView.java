@@ -15,11 +15,17 @@ package com.suyf.lib;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.MainThread;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.AttributeSet;
+import android.view.View;
 import android.view.ViewGroup.LayoutParams;
 import android.widget.ImageView;
 import com.suyf.lib.ImageLoader.ImageContainer;
@@ -30,6 +36,14 @@ import com.suyf.lib.ImageLoader.ImageListener;
  */
 public class NetworkImageView extends ImageView {
 
+  /**
+   * How long a request keeps loading after its view was detached, see {@link
+   * #setDetachGracePeriod(int)}.
+   */
+  public static final int DEFAULT_DETACH_GRACE_PERIOD_MS = 1000;
+
+  private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
   public static final int STATE_ERROR = -1;
   public static final int STATE_IDLE = 0;
   public static final int STATE_CONTENT = 1;
@@ -61,6 +75,40 @@ public class NetworkImageView extends ImageView {
    */
   private ImageContainer mImageContainer;
 
+  /**
+   * How urgently the image of this view is needed while it is shown, it loads at {@link
+   * Priority#BACKGROUND} while hidden.
+   */
+  private Priority mPriority = Priority.VISIBLE;
+
+  /**
+   * Groups the loads of this view with others for {@link ImageLoader#pause(Object)}, the context
+   * of the view if null.
+   */
+  private Object mLoadTag;
+
+  private int mDetachGracePeriodMs = DEFAULT_DETACH_GRACE_PERIOD_MS;
+
+  /**
+   * Whether the image is shown from tiles at full resolution, see {@link #setTiled(boolean)}.
+   */
+  private boolean mTiled;
+
+  // Used to tell a tiled drawable its viewport while drawing on the main thread.
+  private final Matrix mInverseMatrix = new Matrix();
+  private final float[] mMatrixValues = new float[9];
+  private final RectF mViewport = new RectF();
+
+  /**
+   * Cancels the request left loading when the view was detached, once the grace period is over.
+   */
+  private final Runnable mCancelDetachedRequest = new Runnable() {
+    @Override
+    public void run() {
+      cancelImageRequest();
+    }
+  };
+
   public NetworkImageView(Context context) {
     this(context, null);
   }
@@ -93,6 +141,62 @@ public class NetworkImageView extends ImageView {
     loadImageIfNecessary(/* isInLayoutPass= */ false);
   }
 
+  /**
+   * Sets how urgently the image is needed while the view is shown, {@link Priority#VISIBLE} by
+   * default. While the view is hidden its image loads at {@link Priority#BACKGROUND}. A request
+   * that is still loading is moved as well.
+   *
+   * <p>Must be called from the main thread.
+   */
+  @MainThread
+  public void setPriority(Priority priority) {
+    mPriority = priority;
+    updateRequestPriority();
+  }
+
+  public Priority getPriority() {
+    return mPriority;
+  }
+
+  /**
+   * Sets the tag the loads of this view are paused and resumed with, see {@link
+   * ImageLoader#pause(Object)}. By default it is the context of the view, so a {@link
+   * PauseOnScrollListener} without a tag pauses every view of the screen. To pause only the views
+   * of one list, give them the list as tag when binding and pause that same list.
+   *
+   * @param loadTag The tag, or null for the context of the view.
+   */
+  public void setLoadTag(Object loadTag) {
+    mLoadTag = loadTag;
+  }
+
+  public Object getLoadTag() {
+    return mLoadTag != null ? mLoadTag : getContext();
+  }
+
+  /**
+   * Shows the image from tiles decoded at the resolution of the current zoom, for images too large
+   * to be decoded whole. Zoom and pan through {@link #setImageMatrix(android.graphics.Matrix)}
+   * with {@link ScaleType#MATRIX}. Call before {@link #setImageUrl(String, ImageLoader)}.
+   */
+  public void setTiled(boolean tiled) {
+    mTiled = tiled;
+  }
+
+  public boolean isTiled() {
+    return mTiled;
+  }
+
+  /**
+   * Sets how long a request that is still loading survives the view being detached. A RecyclerView
+   * detaches and reattaches views on small scroll reversals and item animations, reattaching with
+   * the same URL within the period picks the request up where it was. Defaults to {@link
+   * #DEFAULT_DETACH_GRACE_PERIOD_MS}, 0 cancels right away.
+   */
+  public void setDetachGracePeriod(int detachGracePeriodMs) {
+    mDetachGracePeriodMs = detachGracePeriodMs;
+  }
+
   /**
    * Sets the default image resource ID to be used for this view until the attempt to load it
    * completes.
@@ -135,11 +239,14 @@ public class NetworkImageView extends ImageView {
     // if the URL to be loaded in this view is empty, cancel any old requests and clear the
     // currently loaded image.
     if (TextUtils.isEmpty(mUrl)) {
+      // Drop the image before the request, a shared drawable is handed back to the other views
+      // showing it on release.
+      setDefaultImageOrNull();
       if (mImageContainer != null) {
+        sMainHandler.removeCallbacks(mCancelDetachedRequest);
         mImageContainer.cancelRequest();
         mImageContainer = null;
       }
-      setDefaultImageOrNull();
       return;
     }
 
@@ -150,8 +257,9 @@ public class NetworkImageView extends ImageView {
         return;
       } else {
         // if there is a pre-existing request, cancel it if it's fetching a different URL.
-        mImageContainer.cancelRequest();
+        sMainHandler.removeCallbacks(mCancelDetachedRequest);
         setDefaultImageOrNull();
+        mImageContainer.cancelRequest();
       }
     }
 
@@ -162,65 +270,78 @@ public class NetworkImageView extends ImageView {
     // The pre-existing content of this view didn't match the current URL. Load the new image
     // from the network.
 
-    // update the ImageContainer to be the new bitmap container.
-    mImageContainer =
-        mImageLoader.get(
-            mUrl,
-            new ImageListener() {
-              @Override
-              public void onError(Exception error) {
-                setErrorImageOrNull();
-              }
-
-              @Override
-              public void onDrawable(final ImageContainer response, boolean isImmediate) {
-                if (isImmediate && isInLayoutPass) {
-                  post(
-                      new Runnable() {
-                        @Override
-                        public void run() {
-                          onDrawable(response, /* isImmediate= */ false);
-                        }
-                      });
-                  return;
-                }
-                if (response.getDrawable() != null) {
-                  setContentDrawable(response.getDrawable());
-                } else {
-                  setDefaultImageOrNull();
-                }
-              }
-
-              @Override
-              public void onResponse(final ImageContainer response, boolean isImmediate) {
-                // If this was an immediate response that was delivered inside of a
-                // layout
-                // pass do not set the image immediately as it will trigger a
-                // requestLayout
-                // inside of a layout. Instead, defer setting the image by posting
-                // back to
-                // the main thread.
-                if (isImmediate && isInLayoutPass) {
-                  post(
-                      new Runnable() {
-                        @Override
-                        public void run() {
-                          onResponse(response, /* isImmediate= */ false);
-                        }
-                      });
-                  return;
+    ImageListener imageListener = new ImageListener() {
+      @Override
+      public void onError(Exception error) {
+        setErrorImageOrNull();
+      }
+
+      @Override
+      public void onDrawable(final ImageContainer response, boolean isImmediate) {
+        if (isImmediate && isInLayoutPass) {
+          post(
+              new Runnable() {
+                @Override
+                public void run() {
+                  if (response != mImageContainer) {
+                    // The view was rebound or cleared before this ran.
+                    return;
+                  }
+                  onDrawable(response, /* isImmediate= */ false);
                 }
+              });
+          return;
+        }
+        // Other views may show the same drawable, this view shows it through its own wrapper.
+        Drawable drawable = response.attachDrawable();
+        if (drawable != null) {
+          setContentDrawable(drawable);
+          response.setAnimationVisible(isVisibleOnScreen());
+        } else {
+          setDefaultImageOrNull();
+        }
+      }
 
-                if (response.getBitmap() != null) {
-                  setContentImage(response.getBitmap());
-                } else {
-                  setDefaultImageOrNull();
+      @Override
+      public void onResponse(final ImageContainer response, boolean isImmediate) {
+        // If this was an immediate response that was delivered inside of a
+        // layout
+        // pass do not set the image immediately as it will trigger a
+        // requestLayout
+        // inside of a layout. Instead, defer setting the image by posting
+        // back to
+        // the main thread.
+        if (isImmediate && isInLayoutPass) {
+          post(
+              new Runnable() {
+                @Override
+                public void run() {
+                  if (response != mImageContainer) {
+                    // The view was rebound or cleared before this ran.
+                    return;
+                  }
+                  onResponse(response, /* isImmediate= */ false);
                 }
-              }
-            },
-            maxWidth,
-            maxHeight,
-            scaleType);
+              });
+          return;
+        }
+
+        if (response.getBitmap() != null) {
+          setContentImage(response.getBitmap());
+        } else {
+          setDefaultImageOrNull();
+        }
+      }
+    };
+
+    // update the ImageContainer to be the new bitmap container.
+    if (mTiled) {
+      mImageContainer = mImageLoader.getTiled(mUrl, imageListener, getRequestPriority(),
+          getLoadTag());
+    } else {
+      mImageContainer = mImageLoader.get(mUrl, imageListener, maxWidth, maxHeight, scaleType,
+          getRequestPriority(), getLoadTag());
+    }
   }
 
   private void setDefaultImageOrNull() {
@@ -267,23 +388,123 @@ public class NetworkImageView extends ImageView {
     return mCurrentState;
   }
 
+  @Override
+  protected void onDraw(Canvas canvas) {
+    Drawable drawable = getDrawable();
+    if (drawable instanceof TiledDrawable) {
+      updateViewport((TiledDrawable) drawable);
+    }
+    super.onDraw(canvas);
+  }
+
+  /**
+   * Maps the content area of the view back through the image matrix, into the coordinates the
+   * drawable is drawn in.
+   */
+  private void updateViewport(TiledDrawable drawable) {
+    Matrix matrix = getImageMatrix();
+    if (!matrix.invert(mInverseMatrix)) {
+      return;
+    }
+    mViewport.set(0, 0, getWidth() - getPaddingLeft() - getPaddingRight(),
+        getHeight() - getPaddingTop() - getPaddingBottom());
+    mInverseMatrix.mapRect(mViewport);
+    matrix.getValues(mMatrixValues);
+    float scale = (float) Math.hypot(mMatrixValues[Matrix.MSCALE_X],
+        mMatrixValues[Matrix.MSKEW_Y]);
+    drawable.setViewport(mViewport, scale);
+  }
+
   @Override
   protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
     super.onLayout(changed, left, top, right, bottom);
     loadImageIfNecessary(/* isInLayoutPass= */ true);
   }
 
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    // Reattached within the grace period, keep the request.
+    sMainHandler.removeCallbacks(mCancelDetachedRequest);
+    setAnimationVisible(isVisibleOnScreen());
+    updateRequestPriority();
+  }
+
+  @Override
+  protected void onVisibilityChanged(View changedView, int visibility) {
+    super.onVisibilityChanged(changedView, visibility);
+    setAnimationVisible(isVisibleOnScreen());
+    updateRequestPriority();
+  }
+
+  @Override
+  protected void onWindowVisibilityChanged(int visibility) {
+    super.onWindowVisibilityChanged(visibility);
+    // The window is hidden while its activity is stopped.
+    setAnimationVisible(visibility == VISIBLE && isShown());
+    updateRequestPriority();
+  }
+
+  private boolean isVisibleOnScreen() {
+    return getWindowVisibility() == VISIBLE && isShown();
+  }
+
+  /**
+   * Returns the priority to load at, {@link Priority#BACKGROUND} while the view can't be seen.
+   */
+  private Priority getRequestPriority() {
+    return isVisibleOnScreen() ? mPriority : Priority.BACKGROUND;
+  }
+
+  private void updateRequestPriority() {
+    if (mImageContainer != null) {
+      mImageContainer.setPriority(getRequestPriority());
+    }
+  }
+
+  /**
+   * Runs an animated image only while the view can be seen, the animation keeps decoding frames
+   * otherwise.
+   */
+  private void setAnimationVisible(boolean visible) {
+    if (mImageContainer != null) {
+      mImageContainer.setAnimationVisible(visible);
+    }
+  }
+
   @Override
   protected void onDetachedFromWindow() {
+    // Still shown while detaching, so stop the animation explicitly.
+    setAnimationVisible(false);
     if (mImageContainer != null) {
-      // If the view was bound to an image request, cancel it and clear
-      // out the image from the view.
-      mImageContainer.cancelRequest();
+      if (mDetachGracePeriodMs > 0 && isLoading(mImageContainer)) {
+        // The view may come right back, let the download go on for a while. It is off screen
+        // meanwhile, onAttachedToWindow() restores the priority.
+        mImageContainer.setPriority(Priority.BACKGROUND);
+        sMainHandler.removeCallbacks(mCancelDetachedRequest);
+        sMainHandler.postDelayed(mCancelDetachedRequest, mDetachGracePeriodMs);
+      } else {
+        cancelImageRequest();
+      }
+    }
+    super.onDetachedFromWindow();
+  }
+
+  private boolean isLoading(ImageContainer container) {
+    return mCurrentState != STATE_ERROR
+        && container.getBitmap() == null
+        && container.getDrawable() == null;
+  }
+
+  private void cancelImageRequest() {
+    if (mImageContainer != null) {
+      // If the view was bound to an image request, clear out the image from the view and
+      // cancel it.
       setImageBitmap(null);
+      mImageContainer.cancelRequest();
       // also clear out the container so we can reload the image if necessary.
       mImageContainer = null;
     }
-    super.onDetachedFromWindow();
   }
 
   @Override
@@ -0,0 +1,74 @@
+package com.suyf.lib;
+
+import android.widget.AbsListView;
+
+/**
+ * Pauses the loads of an {@link AbsListView} while it flings and resumes them once it settles, so
+ * that only the rows still bound by then are loaded.
+ *
+ * <p>Only the loads made with the listener's tag are paused. A {@link NetworkImageView} loads with
+ * its context as tag unless {@link NetworkImageView#setLoadTag(Object)} set another one, so without
+ * a tag the listener pauses the views of the list's context, i.e. of the whole screen. To pause a
+ * single list, set the list as load tag of its views when binding and pass it here as well. Loads
+ * made through {@link ImageLoader} directly are only paused if they are given the same tag.
+ */
+public class PauseOnScrollListener implements AbsListView.OnScrollListener {
+
+  private final ImageLoader mImageLoader;
+  private final Object mTag;
+  private final boolean mPauseOnTouchScroll;
+  private final AbsListView.OnScrollListener mDelegate;
+
+  /**
+   * Pauses the loads made with the context of the list, see {@link
+   * NetworkImageView#setLoadTag(Object)}.
+   */
+  public PauseOnScrollListener(ImageLoader imageLoader) {
+    this(imageLoader, /* tag= */ null);
+  }
+
+  /**
+   * @param tag The tag to pause, or null for the context of the list.
+   */
+  public PauseOnScrollListener(ImageLoader imageLoader, Object tag) {
+    this(imageLoader, tag, /* pauseOnTouchScroll= */ false, /* delegate= */ null);
+  }
+
+  /**
+   * @param tag The tag to pause, or null for the context of the list.
+   * @param pauseOnTouchScroll Also pause while the list is dragged.
+   * @param delegate A listener that keeps receiving the scroll events, or null.
+   */
+  public PauseOnScrollListener(ImageLoader imageLoader, Object tag, boolean pauseOnTouchScroll,
+      AbsListView.OnScrollListener delegate) {
+    mImageLoader = imageLoader;
+    mTag = tag;
+    mPauseOnTouchScroll = pauseOnTouchScroll;
+    mDelegate = delegate;
+  }
+
+  @Override
+  public void onScrollStateChanged(AbsListView view, int scrollState) {
+    if (scrollState == SCROLL_STATE_FLING
+        || (scrollState == SCROLL_STATE_TOUCH_SCROLL && mPauseOnTouchScroll)) {
+      mImageLoader.pause(getTag(view));
+    } else {
+      mImageLoader.resume(getTag(view));
+    }
+    if (mDelegate != null) {
+      mDelegate.onScrollStateChanged(view, scrollState);
+    }
+  }
+
+  @Override
+  public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+      int totalItemCount) {
+    if (mDelegate != null) {
+      mDelegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+    }
+  }
+
+  private Object getTag(AbsListView view) {
+    return mTag != null ? mTag : view.getContext();
+  }
+}
@@ -0,0 +1,24 @@
+package com.suyf.lib;
+
+/**
+ * How urgently a request is needed, most urgent first. Within a priority the newest request runs
+ * first, it is the most likely to still be on screen.
+ */
+public enum Priority {
+  /**
+   * Needed for the current frame, e.g. a view that is being laid out right now.
+   */
+  IMMEDIATE,
+  /**
+   * Shown on screen. The default.
+   */
+  VISIBLE,
+  /**
+   * Likely to be shown soon, e.g. the rows just past the end of a list.
+   */
+  PREFETCH,
+  /**
+   * Not shown, load it whenever nothing else is waiting.
+   */
+  BACKGROUND
+}
@@ -0,0 +1,209 @@
+package com.suyf.lib;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread pool that runs queued tasks by {@link Priority} and newest first within a priority,
+ * instead of in arrival order. After a fling the rows on screen start loading before the backlog
+ * of rows that already scrolled away.
+ *
+ * <p>Runnables that are not a {@link PriorityTask} run at {@link Priority#BACKGROUND}.
+ *
+ * <p>At most {@code maxQueued} tasks wait in the queue. When it is full a task is dropped according
+ * to the {@link OverflowPolicy} and told through {@link PriorityTask#onDropped()}, {@link
+ * #execute(Runnable)} never throws.
+ *
+ * <p>For tuning, the executor keeps how long tasks waited in the queue and how long they ran, see
+ * {@link #getWaitTimes()} and {@link #getRunTimes()}, next to the queue depth and active count of
+ * {@link ThreadPoolExecutor}.
+ */
+public class PriorityExecutor extends ThreadPoolExecutor {
+
+  /**
+   * What to drop when a task is queued while the queue is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Drop the oldest task of the lowest priority queued, prefetch and background work goes first.
+     * The new task is dropped instead if nothing queued is less urgent than it.
+     */
+    SHED_LOWEST_PRIORITY,
+    /**
+     * Always drop the new task.
+     */
+    DROP_NEWEST
+  }
+
+  private final AtomicInteger mRejectedCount = new AtomicInteger();
+  private final AtomicInteger mCanceledCount = new AtomicInteger();
+  private final LatencyHistogram mWaitTimes = new LatencyHistogram();
+  private final LatencyHistogram mRunTimes = new LatencyHistogram();
+  /**
+   * When the task on the current worker thread started running.
+   */
+  private final ThreadLocal<Long> mStartedAt = new ThreadLocal<>();
+  private volatile int mMaxQueued;
+  private volatile OverflowPolicy mOverflowPolicy = OverflowPolicy.SHED_LOWEST_PRIORITY;
+
+  public PriorityExecutor(int poolSize, int maxQueued, ThreadFactory threadFactory) {
+    // A priority queue is unbounded, the pool never grows past its core size so both are the same.
+    super(poolSize, poolSize, 60L, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+        threadFactory);
+    allowCoreThreadTimeOut(true);
+    mMaxQueued = maxQueued;
+  }
+
+  /**
+   * Changes the number of threads.
+   */
+  public void setPoolSize(int poolSize) {
+    if (poolSize > getMaximumPoolSize()) {
+      setMaximumPoolSize(poolSize);
+      setCorePoolSize(poolSize);
+    } else {
+      setCorePoolSize(poolSize);
+      setMaximumPoolSize(poolSize);
+    }
+  }
+
+  public void setMaxQueued(int maxQueued) {
+    mMaxQueued = maxQueued;
+  }
+
+  public int getMaxQueued() {
+    return mMaxQueued;
+  }
+
+  public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+    mOverflowPolicy = overflowPolicy;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return mOverflowPolicy;
+  }
+
+  /**
+   * Returns how many tasks were dropped because the queue was full.
+   */
+  public int getRejectedCount() {
+    return mRejectedCount.get();
+  }
+
+  /**
+   * Returns how many tasks were removed from the queue or ran after their result was no longer
+   * wanted.
+   */
+  public int getCanceledCount() {
+    return mCanceledCount.get();
+  }
+
+  public int getQueuedCount() {
+    return getQueue().size();
+  }
+
+  /**
+   * Returns how long tasks waited between being queued and starting to run.
+   */
+  public LatencyHistogram getWaitTimes() {
+    return mWaitTimes;
+  }
+
+  /**
+   * Returns how long tasks ran.
+   */
+  public LatencyHistogram getRunTimes() {
+    return mRunTimes;
+  }
+
+  @Override
+  protected void beforeExecute(Thread thread, Runnable runnable) {
+    super.beforeExecute(thread, runnable);
+    long now = System.nanoTime();
+    mWaitTimes.record(TimeUnit.NANOSECONDS.toMillis(now - ((PriorityTask) runnable).getQueuedAt()));
+    mStartedAt.set(now);
+  }
+
+  @Override
+  protected void afterExecute(Runnable runnable, Throwable throwable) {
+    super.afterExecute(runnable, throwable);
+    if (((PriorityTask) runnable).isCanceled()) {
+      mCanceledCount.incrementAndGet();
+    }
+    Long startedAt = mStartedAt.get();
+    if (startedAt != null) {
+      mRunTimes.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+      mStartedAt.remove();
+    }
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    PriorityTask task = command instanceof PriorityTask
+        ? (PriorityTask) command : PriorityTask.wrap(command, Priority.BACKGROUND);
+    enqueue(task, /* requeue= */ false);
+  }
+
+  /**
+   * Queues a task again after its priority changed. The queue bound and the overflow policy apply
+   * as for a new task.
+   */
+  void requeue(PriorityTask task) {
+    enqueue(task, /* requeue= */ true);
+  }
+
+  private void enqueue(PriorityTask task, boolean requeue) {
+    PriorityTask dropped = null;
+    synchronized (this) {
+      if (getQueue().size() >= mMaxQueued) {
+        dropped = task;
+        if (mOverflowPolicy == OverflowPolicy.SHED_LOWEST_PRIORITY) {
+          PriorityTask lowest = findLowest();
+          if (lowest != null && lowest.compareTo(task) > 0 && getQueue().remove(lowest)) {
+            dropped = lowest;
+          }
+        }
+      }
+      if (dropped != task) {
+        synchronized (task) {
+          task.onQueued(this, requeue);
+          super.execute(task);
+        }
+      }
+    }
+    if (dropped != null) {
+      mRejectedCount.incrementAndGet();
+      dropped.onDropped();
+    }
+  }
+
+  /**
+   * Removes a queued task whose result is no longer wanted.
+   *
+   * @return false if the task was not queued.
+   */
+  boolean cancel(PriorityTask task) {
+    if (remove(task)) {
+      mCanceledCount.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the queued task that would run last.
+   */
+  private PriorityTask findLowest() {
+    PriorityTask lowest = null;
+    for (Runnable runnable : getQueue()) {
+      PriorityTask task = (PriorityTask) runnable;
+      if (lowest == null || task.compareTo(lowest) > 0) {
+        lowest = task;
+      }
+    }
+    return lowest;
+  }
+}
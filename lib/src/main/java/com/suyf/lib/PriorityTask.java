@@ -0,0 +1,127 @@
+package com.suyf.lib;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A task run by a {@link PriorityExecutor}. Tasks run by {@link Priority}, and within a priority
+ * the most recently queued task runs first. The priority can be changed while the task is queued.
+ */
+public abstract class PriorityTask implements Runnable, Comparable<PriorityTask> {
+
+  private static final AtomicLong sSequence = new AtomicLong();
+
+  private volatile Priority mPriority;
+  private volatile long mSequence;
+  private PriorityExecutor mExecutor;
+  private volatile long mQueuedAt;
+
+  public PriorityTask(Priority priority) {
+    mPriority = priority;
+    mSequence = sSequence.incrementAndGet();
+  }
+
+  public Priority getPriority() {
+    return mPriority;
+  }
+
+  /**
+   * Changes the priority. If the task is still queued it is queued again through the executor, as
+   * the newest task of that priority. It may be dropped then if the queue is full of more urgent
+   * tasks.
+   */
+  public void setPriority(Priority priority) {
+    PriorityExecutor executor;
+    synchronized (this) {
+      if (mPriority == priority) {
+        return;
+      }
+      // The queue orders by priority, the task must be out of it while the priority changes.
+      executor = mExecutor;
+      if (executor == null || !executor.getQueue().remove(this)) {
+        mPriority = priority;
+        return;
+      }
+      mPriority = priority;
+    }
+    // Outside of the lock, the executor locks itself before the task.
+    executor.requeue(this);
+  }
+
+  /**
+   * Removes the task from the queue it waits in because its result is no longer wanted. It is
+   * counted as canceled by the executor.
+   *
+   * @return false if it was not queued, e.g. because it is running.
+   */
+  public synchronized boolean dequeue() {
+    return mExecutor != null && mExecutor.cancel(this);
+  }
+
+  /**
+   * Returns true if the result is no longer wanted. A task that runs anyway should stop as soon as
+   * it notices, it is counted as canceled by the executor.
+   */
+  public boolean isCanceled() {
+    return false;
+  }
+
+  /**
+   * Called instead of {@link #run()} when the executor's queue overflowed and this task was shed.
+   * The task is not run afterwards, it should fail whoever waits for it.
+   */
+  protected void onDropped() {
+  }
+
+  /**
+   * Called by the executor with the task's lock held, right before it is queued.
+   *
+   * @param requeue True if the task was queued before and only its priority changed, it keeps the
+   * time it was first queued at.
+   */
+  void onQueued(PriorityExecutor executor, boolean requeue) {
+    mExecutor = executor;
+    mSequence = sSequence.incrementAndGet();
+    if (!requeue) {
+      mQueuedAt = System.nanoTime();
+    }
+  }
+
+  /**
+   * Returns when the task was last queued, in {@link System#nanoTime()}.
+   */
+  long getQueuedAt() {
+    return mQueuedAt;
+  }
+
+  @Override
+  public int compareTo(PriorityTask other) {
+    int result = mPriority.compareTo(other.mPriority);
+    if (result != 0) {
+      return result;
+    }
+    // Newest first.
+    long sequence = mSequence;
+    long otherSequence = other.mSequence;
+    return sequence > otherSequence ? -1 : (sequence == otherSequence ? 0 : 1);
+  }
+
+  /**
+   * Wraps a plain runnable.
+   */
+  public static PriorityTask wrap(final Runnable runnable, Priority priority) {
+    return new PriorityTask(priority) {
+      @Override
+      public void run() {
+        runnable.run();
+      }
+
+      @Override
+      protected void onDropped() {
+        if (runnable instanceof Future) {
+          ((Future<?>) runnable).cancel(false);
+        }
+      }
+    };
+  }
+}
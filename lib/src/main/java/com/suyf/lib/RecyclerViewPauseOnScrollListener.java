@@ -0,0 +1,62 @@
+package com.suyf.lib;
+
+import android.support.v7.widget.RecyclerView;
+
+/**
+ * Pauses the loads of a {@link RecyclerView} while it flings and resumes them once it settles, so
+ * that only the items still bound by then are loaded.
+ *
+ * <p>Only the loads made with the listener's tag are paused. A {@link NetworkImageView} loads with
+ * its context as tag unless {@link NetworkImageView#setLoadTag(Object)} set another one, so without
+ * a tag the listener pauses the views of the list's context, i.e. of the whole screen. To pause a
+ * single list, set the list as load tag of its views when binding and pass it here as well. Loads
+ * made through {@link ImageLoader} directly are only paused if they are given the same tag.
+ *
+ * <p>Kept apart from {@link PauseOnScrollListener} because RecyclerView is an optional dependency.
+ */
+public class RecyclerViewPauseOnScrollListener extends RecyclerView.OnScrollListener {
+
+  private final ImageLoader mImageLoader;
+  private final Object mTag;
+  private final boolean mPauseOnDrag;
+
+  /**
+   * Pauses the loads made with the context of the list, see {@link
+   * NetworkImageView#setLoadTag(Object)}.
+   */
+  public RecyclerViewPauseOnScrollListener(ImageLoader imageLoader) {
+    this(imageLoader, /* tag= */ null);
+  }
+
+  /**
+   * @param tag The tag to pause, or null for the context of the list.
+   */
+  public RecyclerViewPauseOnScrollListener(ImageLoader imageLoader, Object tag) {
+    this(imageLoader, tag, /* pauseOnDrag= */ false);
+  }
+
+  /**
+   * @param tag The tag to pause, or null for the context of the list.
+   * @param pauseOnDrag Also pause while the list is dragged.
+   */
+  public RecyclerViewPauseOnScrollListener(ImageLoader imageLoader, Object tag,
+      boolean pauseOnDrag) {
+    mImageLoader = imageLoader;
+    mTag = tag;
+    mPauseOnDrag = pauseOnDrag;
+  }
+
+  @Override
+  public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+    if (newState == RecyclerView.SCROLL_STATE_SETTLING
+        || (newState == RecyclerView.SCROLL_STATE_DRAGGING && mPauseOnDrag)) {
+      mImageLoader.pause(getTag(recyclerView));
+    } else {
+      mImageLoader.resume(getTag(recyclerView));
+    }
+  }
+
+  private Object getTag(RecyclerView recyclerView) {
+    return mTag != null ? mTag : recyclerView.getContext();
+  }
+}
@@ -0,0 +1,35 @@
+package com.suyf.lib;
+
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+/**
+ * Feeds the visible range of a {@link RecyclerView} with a {@link LinearLayoutManager} to a {@link
+ * ListPreloader}.
+ *
+ * <p>Kept apart from {@link ListPreloader} because RecyclerView is an optional dependency.
+ */
+public class RecyclerViewPreloader extends RecyclerView.OnScrollListener {
+
+  private final ListPreloader mPreloader;
+
+  public RecyclerViewPreloader(ListPreloader preloader) {
+    mPreloader = preloader;
+  }
+
+  @Override
+  public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+    RecyclerView.LayoutManager layoutManager = recyclerView.getLayoutManager();
+    RecyclerView.Adapter adapter = recyclerView.getAdapter();
+    if (!(layoutManager instanceof LinearLayoutManager) || adapter == null) {
+      return;
+    }
+    LinearLayoutManager linearLayoutManager = (LinearLayoutManager) layoutManager;
+    int first = linearLayoutManager.findFirstVisibleItemPosition();
+    int last = linearLayoutManager.findLastVisibleItemPosition();
+    if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION) {
+      return;
+    }
+    mPreloader.onVisibleRangeChanged(first, last - first + 1, adapter.getItemCount());
+  }
+}
@@ -0,0 +1,84 @@
+package com.suyf.lib;
+
+import android.graphics.drawable.Drawable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Forwards the callbacks of one animated drawable to every view showing it. A drawable has a
+ * single callback, without this only the view that bound it last would animate.
+ *
+ * <p>Views are held weakly, like {@link Drawable#setCallback(Drawable.Callback)} does.
+ */
+public class SharedDrawableCallback implements Drawable.Callback {
+
+  private final List<WeakReference<Drawable.Callback>> mCallbacks = new ArrayList<>(2);
+
+  public synchronized void addCallback(Drawable.Callback callback) {
+    if (indexOf(callback) < 0) {
+      mCallbacks.add(new WeakReference<>(callback));
+    }
+  }
+
+  public synchronized void removeCallback(Drawable.Callback callback) {
+    int index = indexOf(callback);
+    if (index >= 0) {
+      mCallbacks.remove(index);
+    }
+  }
+
+  public synchronized boolean isEmpty() {
+    return mCallbacks.isEmpty();
+  }
+
+  private int indexOf(Drawable.Callback callback) {
+    for (int i = 0; i < mCallbacks.size(); i++) {
+      if (mCallbacks.get(i).get() == callback) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private synchronized List<Drawable.Callback> getCallbacks() {
+    List<Drawable.Callback> callbacks = new ArrayList<>(mCallbacks.size());
+    Iterator<WeakReference<Drawable.Callback>> iterator = mCallbacks.iterator();
+    while (iterator.hasNext()) {
+      Drawable.Callback callback = iterator.next().get();
+      if (callback == null) {
+        iterator.remove();
+      } else {
+        callbacks.add(callback);
+      }
+    }
+    return callbacks;
+  }
+
+  @Override
+  public void invalidateDrawable(Drawable who) {
+    for (Drawable.Callback callback : getCallbacks()) {
+      callback.invalidateDrawable(who);
+    }
+  }
+
+  /**
+   * Scheduled through one view only, a frame posted by every view would advance the animation
+   * once per view.
+   */
+  @Override
+  public void scheduleDrawable(Drawable who, Runnable what, long when) {
+    List<Drawable.Callback> callbacks = getCallbacks();
+    if (!callbacks.isEmpty()) {
+      callbacks.get(0).scheduleDrawable(who, what, when);
+    }
+  }
+
+  @Override
+  public void unscheduleDrawable(Drawable who, Runnable what) {
+    for (Drawable.Callback callback : getCallbacks()) {
+      callback.unscheduleDrawable(who, what);
+    }
+  }
+}
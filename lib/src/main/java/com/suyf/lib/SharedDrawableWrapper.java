@@ -0,0 +1,78 @@
+package com.suyf.lib;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Shows a drawable shared by several views in one of them. Each view gets its own wrapper, so
+ * that what a view does to its drawable stays with that view:
+ * <ul>
+ * <li>{@link #setVisible(boolean, boolean)} is not passed on. An ImageView calls it when it takes
+ * the drawable, is hidden or is detached, which would restart or stop the animation in every view.
+ * The loader runs the shared drawable instead, see {@link
+ * ImageLoader.ImageContainer#setAnimationVisible(boolean)}.</li>
+ * <li>The bounds of the view are applied right before drawing, views of different sizes share the
+ * drawable.</li>
+ * </ul>
+ * Register the wrapper as a callback of the shared drawable, see {@link SharedDrawableCallback}.
+ */
+public class SharedDrawableWrapper extends Drawable implements Drawable.Callback {
+
+  private final Drawable mDrawable;
+
+  public SharedDrawableWrapper(Drawable drawable) {
+    mDrawable = drawable;
+  }
+
+  public Drawable getWrappedDrawable() {
+    return mDrawable;
+  }
+
+  @Override
+  public void draw(Canvas canvas) {
+    // Drawing happens on the main thread only, no other view changes the bounds in between.
+    mDrawable.setBounds(getBounds());
+    mDrawable.draw(canvas);
+  }
+
+  @Override
+  public int getIntrinsicWidth() {
+    return mDrawable.getIntrinsicWidth();
+  }
+
+  @Override
+  public int getIntrinsicHeight() {
+    return mDrawable.getIntrinsicHeight();
+  }
+
+  @Override
+  public void setAlpha(int alpha) {
+    mDrawable.setAlpha(alpha);
+  }
+
+  @Override
+  public void setColorFilter(ColorFilter colorFilter) {
+    mDrawable.setColorFilter(colorFilter);
+  }
+
+  @Override
+  public int getOpacity() {
+    return mDrawable.getOpacity();
+  }
+
+  @Override
+  public void invalidateDrawable(Drawable who) {
+    invalidateSelf();
+  }
+
+  @Override
+  public void scheduleDrawable(Drawable who, Runnable what, long when) {
+    scheduleSelf(what, when);
+  }
+
+  @Override
+  public void unscheduleDrawable(Drawable who, Runnable what) {
+    unscheduleSelf(what);
+  }
+}
@@ -0,0 +1,507 @@
+package com.suyf.lib;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import com.suyf.lib.ImageLoader.ImageCache;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Draws a very large image, e.g. a panorama or a scan, from tiles that {@link BitmapRegionDecoder}
+ * decodes out of the original at the resolution the canvas needs. Only the tiles covering the
+ * visible part are decoded. They are kept in the memory cache under their own keys and their
+ * bitmaps are reused, so memory grows with the screen size rather than the image size.
+ *
+ * <p>Zoom and pan through the image matrix of the view, e.g. with {@link
+ * android.widget.ImageView.ScaleType#MATRIX}, and pass the part it shows to {@link
+ * #setViewport(RectF, float)}. Every draw picks the tiles for the current viewport and shows
+ * coarser tiles until the sharp ones are decoded.
+ *
+ * <p>The drawable that is delivered and cached owns the decoder. Each view draws through its own
+ * {@link #newView()}, which shares the decoder but keeps the tiles of that view's zoom and bounds.
+ */
+public class TiledDrawable extends Drawable {
+
+  /**
+   * The size of a decoded tile in pixels.
+   */
+  public static final int TILE_SIZE = 512;
+
+  private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+  private final String mUrl;
+  /**
+   * Guarded by itself, so that it is not recycled in the middle of a decode. Shared with the views.
+   */
+  private final BitmapRegionDecoder mDecoder;
+  /**
+   * The drawable owning the decoder, this one unless it is a view of it.
+   */
+  private final TiledDrawable mOwner;
+  private final long mByteCount;
+  private final ImageCache mCache;
+  private final Config mConfig;
+  private final int mWidth;
+  private final int mHeight;
+  /**
+   * The sample size at which the whole image fits into one tile.
+   */
+  private final int mMaxSampleSize;
+  private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+  // Used while drawing on the main thread.
+  private final Rect mClip = new Rect();
+  private final Rect mSrc = new Rect();
+  private final RectF mDst = new RectF();
+  /**
+   * Tile keys -> the tiles the last frame drew. They are acquired from the cache so that their
+   * bitmaps are not reused while on screen. Main thread only.
+   */
+  private HashMap<String, Bitmap> mDrawnTiles = new HashMap<>();
+  /**
+   * The part of the bounds the view shows and its screen pixels per unit of the bounds, see {@link
+   * #setViewport(RectF, float)}. Main thread only.
+   */
+  private final RectF mViewport = new RectF();
+  private float mViewportScale = 1;
+  private boolean mHasViewport;
+
+  /**
+   * Tile keys -> the decodes queued or running for the owner and its views, guarded by itself.
+   * Shared with the views, so that a tile several of them wait for is decoded once.
+   */
+  private final HashMap<String, PendingTile> mPendingTiles;
+  private volatile boolean mRecycled;
+
+  private final Runnable mInvalidate = new Runnable() {
+    @Override
+    public void run() {
+      invalidateSelf();
+    }
+  };
+
+  /**
+   * @param url The url of the image, tiles are cached under keys derived from it.
+   * @param decoder The decoder opened on the original, owned by the drawable from now on.
+   * @param byteCount The memory the decoder holds, the size of the original.
+   * @param cache The cache the tiles are kept in and their bitmaps reused from.
+   * @param config Format to decode the tiles to.
+   */
+  public TiledDrawable(String url, BitmapRegionDecoder decoder, long byteCount, ImageCache cache,
+      Config config) {
+    mUrl = url;
+    mDecoder = decoder;
+    mOwner = this;
+    mPendingTiles = new HashMap<>();
+    mByteCount = byteCount;
+    mCache = cache;
+    mConfig = config;
+    mWidth = decoder.getWidth();
+    mHeight = decoder.getHeight();
+    int maxSampleSize = 1;
+    while (TILE_SIZE * maxSampleSize < Math.max(mWidth, mHeight)) {
+      maxSampleSize *= 2;
+    }
+    mMaxSampleSize = maxSampleSize;
+  }
+
+  private TiledDrawable(TiledDrawable owner) {
+    mUrl = owner.mUrl;
+    mDecoder = owner.mDecoder;
+    mOwner = owner;
+    mPendingTiles = owner.mPendingTiles;
+    mByteCount = owner.mByteCount;
+    mCache = owner.mCache;
+    mConfig = owner.mConfig;
+    mWidth = owner.mWidth;
+    mHeight = owner.mHeight;
+    mMaxSampleSize = owner.mMaxSampleSize;
+  }
+
+  /**
+   * Returns a drawable for one view that decodes through the decoder of this one. Tiles are still
+   * shared through the cache. Recycle it once the view no longer shows it, before this one is
+   * recycled.
+   */
+  public TiledDrawable newView() {
+    return new TiledDrawable(mOwner);
+  }
+
+  @Override
+  public int getIntrinsicWidth() {
+    return mWidth;
+  }
+
+  @Override
+  public int getIntrinsicHeight() {
+    return mHeight;
+  }
+
+  /**
+   * Returns the memory held by the decoder, the tiles are accounted in the cache on their own.
+   */
+  public long getByteCount() {
+    return mByteCount;
+  }
+
+  /**
+   * Tells the drawable what its view shows of it. Call it before drawing whenever the view was
+   * zoomed, panned or resized, {@link NetworkImageView} does so from its image matrix. Until then
+   * the drawable is drawn whole, one screen pixel per unit of its bounds.
+   *
+   * @param visible The part of the bounds inside the view, in the coordinates of the bounds.
+   * @param scale Screen pixels per unit of the bounds.
+   */
+  public void setViewport(RectF visible, float scale) {
+    mViewport.set(visible);
+    mViewportScale = scale;
+    mHasViewport = true;
+  }
+
+  @Override
+  public void draw(Canvas canvas) {
+    Rect bounds = getBounds();
+    if (isRecycled() || bounds.isEmpty()) {
+      return;
+    }
+    mClip.set(bounds);
+    if (mHasViewport) {
+      mViewport.roundOut(mClip);
+      if (!mClip.intersect(bounds)) {
+        return;
+      }
+    }
+    // Drawable units per image pixel, and screen pixels per drawable unit.
+    float boundsScaleX = (float) bounds.width() / mWidth;
+    float boundsScaleY = (float) bounds.height() / mHeight;
+    int sampleSize = getSampleSize(mViewportScale * Math.max(boundsScaleX, boundsScaleY));
+
+    // The visible part in image pixels.
+    int left = Math.max(0, (int) ((mClip.left - bounds.left) / boundsScaleX));
+    int top = Math.max(0, (int) ((mClip.top - bounds.top) / boundsScaleY));
+    int right = Math.min(mWidth, (int) Math.ceil((mClip.right - bounds.left) / boundsScaleX));
+    int bottom = Math.min(mHeight, (int) Math.ceil((mClip.bottom - bounds.top) / boundsScaleY));
+
+    HashMap<String, Bitmap> drawnTiles = new HashMap<>();
+    Set<String> wantedTiles = new HashSet<>();
+    int span = TILE_SIZE * sampleSize;
+    for (int row = top / span; row * span < bottom; row++) {
+      for (int col = left / span; col * span < right; col++) {
+        String key = getTileKey(sampleSize, col, row);
+        Bitmap tile = getTile(key);
+        if (tile != null) {
+          drawTile(canvas, bounds, key, tile, col * span, row * span, span, sampleSize,
+              drawnTiles);
+          continue;
+        }
+        wantedTiles.add(key);
+        requestTile(key, new Rect(col * span, row * span, Math.min(mWidth, (col + 1) * span),
+            Math.min(mHeight, (row + 1) * span)), sampleSize);
+        drawCoarserTile(canvas, bounds, col * span, row * span, span, sampleSize, drawnTiles);
+      }
+    }
+    cancelTilesExcept(wantedTiles);
+    holdDrawnTiles(drawnTiles);
+  }
+
+  /**
+   * Returns the largest power of two that still decodes at least one pixel per screen pixel.
+   *
+   * @param scale Screen pixels per image pixel.
+   */
+  private int getSampleSize(float scale) {
+    int sampleSize = 1;
+    while (sampleSize < mMaxSampleSize && sampleSize * 2 * scale <= 1) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  /**
+   * Returns the tile if it is in memory. A tile taken from the cache is held in {@link
+   * #mDrawnTiles} until the end of the draw, so it can't be pooled while drawing.
+   */
+  private Bitmap getTile(String key) {
+    Bitmap tile = mDrawnTiles.get(key);
+    if (tile == null) {
+      tile = mCache.getAndAcquireBitmap(key);
+      if (tile != null) {
+        mDrawnTiles.put(key, tile);
+      }
+    }
+    return tile;
+  }
+
+  /**
+   * Draws the part of a tile that covers the given area of the image.
+   *
+   * @param tileLeft The left edge of the tile in image pixels.
+   * @param tileTop The top edge of the tile in image pixels.
+   * @param x The left edge of the area in image pixels.
+   * @param y The top edge of the area in image pixels.
+   * @param span The size of the area in image pixels.
+   */
+  private void drawTile(Canvas canvas, Rect bounds, String key, Bitmap tile, int tileLeft,
+      int tileTop, int x, int y, int span, int tileSampleSize, Map<String, Bitmap> drawnTiles) {
+    int right = Math.min(mWidth, x + span);
+    int bottom = Math.min(mHeight, y + span);
+    mSrc.set((x - tileLeft) / tileSampleSize, (y - tileTop) / tileSampleSize,
+        Math.min(tile.getWidth(), (right - tileLeft + tileSampleSize - 1) / tileSampleSize),
+        Math.min(tile.getHeight(), (bottom - tileTop + tileSampleSize - 1) / tileSampleSize));
+    float scaleX = (float) bounds.width() / mWidth;
+    float scaleY = (float) bounds.height() / mHeight;
+    mDst.set(bounds.left + x * scaleX, bounds.top + y * scaleY, bounds.left + right * scaleX,
+        bounds.top + bottom * scaleY);
+    canvas.drawBitmap(tile, mSrc, mDst, mPaint);
+    drawnTiles.put(key, tile);
+  }
+
+  private void drawTile(Canvas canvas, Rect bounds, String key, Bitmap tile, int x, int y,
+      int span, int sampleSize, Map<String, Bitmap> drawnTiles) {
+    drawTile(canvas, bounds, key, tile, x, y, x, y, span, sampleSize, drawnTiles);
+  }
+
+  /**
+   * Fills the area of a missing tile from a coarser tile that was decoded before, if any.
+   */
+  private void drawCoarserTile(Canvas canvas, Rect bounds, int x, int y, int span,
+      int sampleSize, Map<String, Bitmap> drawnTiles) {
+    for (int coarse = sampleSize * 2; coarse <= mMaxSampleSize; coarse *= 2) {
+      int coarseSpan = TILE_SIZE * coarse;
+      int col = x / coarseSpan;
+      int row = y / coarseSpan;
+      String key = getTileKey(coarse, col, row);
+      Bitmap tile = getTile(key);
+      if (tile != null) {
+        drawTile(canvas, bounds, key, tile, col * coarseSpan, row * coarseSpan, x, y, span, coarse,
+            drawnTiles);
+        return;
+      }
+    }
+  }
+
+  private String getTileKey(int sampleSize, int col, int row) {
+    return new StringBuilder(mUrl.length() + 16)
+        .append("#T")
+        .append(sampleSize)
+        .append("#X")
+        .append(col)
+        .append("#Y")
+        .append(row)
+        .append(mUrl)
+        .toString();
+  }
+
+  /**
+   * Queues the decode of a tile unless it is already loading for this or another view.
+   *
+   * @param region The part of the image the tile covers, in image pixels.
+   */
+  private void requestTile(final String key, final Rect region, final int sampleSize) {
+    final PendingTile pending = new PendingTile();
+    pending.mTask = new PriorityTask(Priority.VISIBLE) {
+      @Override
+      public void run() {
+        synchronized (mPendingTiles) {
+          if (mPendingTiles.get(key) != pending) {
+            return;
+          }
+        }
+        ArrayList<TiledDrawable> views;
+        try {
+          mOwner.decodeTile(key, region, sampleSize);
+        } finally {
+          synchronized (mPendingTiles) {
+            if (mPendingTiles.get(key) == pending) {
+              mPendingTiles.remove(key);
+            }
+            views = new ArrayList<>(pending.mViews);
+          }
+        }
+        for (TiledDrawable view : views) {
+          sMainHandler.post(view.mInvalidate);
+        }
+      }
+
+      @Override
+      public boolean isCanceled() {
+        return mOwner.mRecycled;
+      }
+
+      @Override
+      protected void onDropped() {
+        synchronized (mPendingTiles) {
+          if (mPendingTiles.get(key) == pending) {
+            // The next draw asks again.
+            mPendingTiles.remove(key);
+          }
+        }
+      }
+    };
+    synchronized (mPendingTiles) {
+      PendingTile loading = mPendingTiles.get(key);
+      if (loading != null) {
+        loading.mViews.add(this);
+        return;
+      }
+      pending.mViews.add(this);
+      mPendingTiles.put(key, pending);
+    }
+    ConcurrentExecutor.getDecodeExecutor().execute(pending.mTask);
+  }
+
+  /**
+   * Drops the decodes of tiles that scrolled out of view or belong to another zoom level, unless
+   * another view still waits for them.
+   */
+  private void cancelTilesExcept(Set<String> wantedTiles) {
+    ArrayList<PriorityTask> canceled = new ArrayList<>();
+    synchronized (mPendingTiles) {
+      Iterator<Map.Entry<String, PendingTile>> iterator = mPendingTiles.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<String, PendingTile> entry = iterator.next();
+        PendingTile pending = entry.getValue();
+        if (!wantedTiles.contains(entry.getKey()) && pending.mViews.remove(this)
+            && pending.mViews.isEmpty()) {
+          canceled.add(pending.mTask);
+          iterator.remove();
+        }
+      }
+    }
+    for (PriorityTask task : canceled) {
+      task.dequeue();
+    }
+  }
+
+  /**
+   * Keeps the holds on the tiles drawn and releases those no longer drawn. Every drawn tile was
+   * acquired by {@link #getTile(String)}.
+   */
+  private void holdDrawnTiles(HashMap<String, Bitmap> drawnTiles) {
+    for (String key : drawnTiles.keySet()) {
+      mDrawnTiles.remove(key);
+    }
+    for (Bitmap tile : mDrawnTiles.values()) {
+      mCache.releaseBitmap(tile);
+    }
+    mDrawnTiles = drawnTiles;
+  }
+
+  private void decodeTile(String key, Rect region, int sampleSize) {
+    int width = (region.width() + sampleSize - 1) / sampleSize;
+    int height = (region.height() + sampleSize - 1) / sampleSize;
+    long cost = (long) width * height * BitmapPool.getBytesPerPixel(mConfig);
+    try {
+      DecodeAdmission.get().acquire(cost);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    Bitmap tile;
+    try {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inSampleSize = sampleSize;
+      options.inPreferredConfig = mConfig;
+      options.inMutable = true;
+      BitmapPool pool = mCache.getBitmapPool();
+      Bitmap inBitmap = pool != null ? pool.get(width, height, mConfig, sampleSize) : null;
+      options.inBitmap = inBitmap;
+      tile = decodeRegion(region, options);
+      if (tile == null && inBitmap != null) {
+        // The pooled bitmap can't hold this tile, decode into a new one.
+        options.inBitmap = null;
+        pool.put(inBitmap);
+        tile = decodeRegion(region, options);
+      }
+    } finally {
+      DecodeAdmission.get().release(cost);
+    }
+    if (tile != null) {
+      mCache.putBitmap(key, tile);
+    }
+  }
+
+  private Bitmap decodeRegion(Rect region, BitmapFactory.Options options) {
+    synchronized (mDecoder) {
+      if (isRecycled()) {
+        return null;
+      }
+      try {
+        return mDecoder.decodeRegion(region, options);
+      } catch (IllegalArgumentException e) {
+        return null;
+      } catch (OutOfMemoryError e) {
+        e.printStackTrace();
+        return null;
+      }
+    }
+  }
+
+  private boolean isRecycled() {
+    return mRecycled || mOwner.mRecycled;
+  }
+
+  /**
+   * Lets go of the tiles, and closes the decoder unless this is a view of another drawable. Called
+   * once no one shows the drawable anymore, the cached tiles stay until they are evicted.
+   */
+  public void recycle() {
+    synchronized (mDecoder) {
+      if (mRecycled) {
+        return;
+      }
+      mRecycled = true;
+      if (mOwner == this) {
+        mDecoder.recycle();
+      }
+    }
+    cancelTilesExcept(new HashSet<String>());
+    sMainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        holdDrawnTiles(new HashMap<String, Bitmap>());
+      }
+    });
+  }
+
+  @Override
+  public void setAlpha(int alpha) {
+    mPaint.setAlpha(alpha);
+    invalidateSelf();
+  }
+
+  @Override
+  public void setColorFilter(ColorFilter colorFilter) {
+    mPaint.setColorFilter(colorFilter);
+    invalidateSelf();
+  }
+
+  @Override
+  public int getOpacity() {
+    return PixelFormat.TRANSLUCENT;
+  }
+
+  /**
+   * A tile being decoded and the views waiting for it, guarded by the map of pending tiles.
+   */
+  private static class PendingTile {
+
+    private final Set<TiledDrawable> mViews = new HashSet<>();
+    private PriorityTask mTask;
+  }
+}
@@ -0,0 +1,68 @@
+package com.suyf.lib;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapRegionDecoder;
+import android.widget.ImageView.ScaleType;
+import com.suyf.lib.ImageLoader.ImageCache;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A request that opens a {@link TiledDrawable} on the original image instead of decoding it whole,
+ * for images too large to fit into memory even when sampled.
+ */
+public class TiledImageRequest extends ImageRequest {
+
+  private final ResponseListener mTiledListener;
+  private final ImageCache mCache;
+  private final Config mTileConfig;
+
+  /**
+   * @param url URL of the image
+   * @param responseListener Listener to receive the drawable
+   * @param cache The cache the tiles are kept in
+   * @param tileConfig Format to decode the tiles to
+   */
+  public TiledImageRequest(String url, ResponseListener responseListener, ImageCache cache,
+      Config tileConfig) {
+    super(url, responseListener, 0, 0, ScaleType.MATRIX, tileConfig, cache.getBitmapPool());
+    mTiledListener = responseListener;
+    mCache = cache;
+    mTileConfig = tileConfig;
+  }
+
+  @Override
+  boolean deliverResponse(File file) {
+    if (isCanceled()) {
+      return true;
+    }
+    BitmapRegionDecoder decoder;
+    try {
+      // Only JPEG, PNG and WebP can be decoded by region.
+      decoder = BitmapRegionDecoder.newInstance(file.getPath(), false);
+    } catch (IOException e) {
+      return false;
+    }
+    if (decoder == null) {
+      return false;
+    }
+    TiledDrawable drawable = new TiledDrawable(getUrl(), decoder, file.length(), mCache,
+        mTileConfig);
+    if (isCanceled()) {
+      drawable.recycle();
+      return true;
+    }
+    mTiledListener.onDrawableResponse(drawable);
+    return true;
+  }
+
+  /**
+   * Tiles are always decoded from the original.
+   */
+  @Override
+  Bitmap findVariant(List<Bitmap> variants) {
+    return null;
+  }
+}
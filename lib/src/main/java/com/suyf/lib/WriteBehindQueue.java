@@ -0,0 +1,122 @@
+package com.suyf.lib;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Commits downloads into a {@link DiskLruCache} on a dedicated low priority thread, so decodes
+ * never wait for the disk. A newer download of a key replaces the one still pending, and when more
+ * than {@code maxPending} are queued the oldest one is dropped: its file is deleted and the url is
+ * downloaded again the next time it is not in memory.
+ */
+public class WriteBehindQueue {
+
+  private final int mMaxPending;
+  /**
+   * Pending commits in arrival order, guarded by {@code this}.
+   */
+  private final LinkedHashMap<String, DiskLruCache.Editor> mPending = new LinkedHashMap<>();
+  private final ExecutorService mExecutor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(), ConcurrentExecutor.create("disk_write", true));
+  private final Runnable mDrainRunnable = new Runnable() {
+    @Override
+    public void run() {
+      drain();
+    }
+  };
+  private final AtomicInteger mWrittenCount = new AtomicInteger();
+  private final AtomicInteger mDroppedCount = new AtomicInteger();
+  private final LatencyHistogram mWriteTimes = new LatencyHistogram();
+  private boolean mDraining;
+
+  public WriteBehindQueue(int maxPending) {
+    mMaxPending = maxPending;
+  }
+
+  /**
+   * Queues the commit of {@code editor} for {@code key}, replacing a pending commit for the same
+   * key.
+   */
+  public void enqueue(String key, DiskLruCache.Editor editor) {
+    DiskLruCache.Editor dropped;
+    synchronized (this) {
+      dropped = mPending.remove(key);
+      mPending.put(key, editor);
+      if (dropped == null && mPending.size() > mMaxPending) {
+        Iterator<Map.Entry<String, DiskLruCache.Editor>> iterator = mPending.entrySet().iterator();
+        dropped = iterator.next().getValue();
+        iterator.remove();
+      }
+      if (!mDraining) {
+        mDraining = true;
+        mExecutor.execute(mDrainRunnable);
+      }
+    }
+    if (dropped != null) {
+      mDroppedCount.incrementAndGet();
+      dropped.abort();
+    }
+  }
+
+  /**
+   * Drops every commit that has not started yet.
+   */
+  public void clear() {
+    List<DiskLruCache.Editor> dropped;
+    synchronized (this) {
+      dropped = new ArrayList<>(mPending.values());
+      mPending.clear();
+    }
+    mDroppedCount.addAndGet(dropped.size());
+    for (DiskLruCache.Editor editor : dropped) {
+      editor.abort();
+    }
+  }
+
+  public synchronized int getPendingCount() {
+    return mPending.size();
+  }
+
+  public int getWrittenCount() {
+    return mWrittenCount.get();
+  }
+
+  public int getDroppedCount() {
+    return mDroppedCount.get();
+  }
+
+  /**
+   * Returns how long commits took to reach the disk.
+   */
+  public LatencyHistogram getWriteTimes() {
+    return mWriteTimes;
+  }
+
+  private void drain() {
+    while (true) {
+      DiskLruCache.Editor editor;
+      synchronized (this) {
+        Iterator<DiskLruCache.Editor> iterator = mPending.values().iterator();
+        if (!iterator.hasNext()) {
+          mDraining = false;
+          return;
+        }
+        editor = iterator.next();
+        iterator.remove();
+      }
+      long start = System.nanoTime();
+      if (editor.commit() != null) {
+        mWrittenCount.incrementAndGet();
+        mWriteTimes.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      }
+    }
+  }
+}
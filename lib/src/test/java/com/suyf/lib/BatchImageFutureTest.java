@@ -0,0 +1,89 @@
+package com.suyf.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.suyf.lib.ImageFutureTest.CountingRunnable;
+import com.suyf.lib.ImageFutureTest.TestDrawable;
+import com.suyf.lib.ImageLoader.ImageContainer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class BatchImageFutureTest {
+
+  private final ImageLoader mImageLoader = new ImageLoader(null, null);
+
+  @Test
+  public void doneOnceEveryImageIs() throws Exception {
+    ImageFuture first = new ImageFuture();
+    ImageFuture second = new ImageFuture();
+    BatchImageFuture batch = new BatchImageFuture(Arrays.asList(first, second));
+    AtomicInteger calls = new AtomicInteger();
+    batch.addListener(new CountingRunnable(calls), ImageFuture.DIRECT_EXECUTOR);
+    ImageContainer container = mImageLoader.new ImageContainer(new TestDrawable(), null,
+        "http://example.com/a.gif", /* cacheKey= */ null, /* listener= */ null);
+
+    first.mImageListener.onDrawable(container, false);
+    assertFalse(batch.isDone());
+    assertEquals(0, calls.get());
+    second.mImageListener.onError(new Exception());
+
+    assertTrue(batch.isDone());
+    assertEquals(1, calls.get());
+    List<ImageContainer> results = batch.get();
+    assertSame(container, results.get(0));
+    // Failed images are null, their errors are on their own futures.
+    assertNull(results.get(1));
+  }
+
+  @Test
+  public void listenerAddedWhenDoneRunsRightAway() {
+    ImageFuture future = new ImageFuture();
+    BatchImageFuture batch = new BatchImageFuture(Arrays.asList(future));
+    future.mImageListener.onError(new Exception());
+    AtomicInteger calls = new AtomicInteger();
+
+    batch.addListener(new CountingRunnable(calls), ImageFuture.DIRECT_EXECUTOR);
+
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void emptyBatchIsDone() throws Exception {
+    BatchImageFuture batch = new BatchImageFuture(Arrays.<ImageFuture>asList());
+
+    assertTrue(batch.isDone());
+    assertTrue(batch.get().isEmpty());
+  }
+
+  @Test(expected = TimeoutException.class)
+  public void getTimesOutWhileAnImageLoads() throws Exception {
+    ImageFuture done = new ImageFuture();
+    done.mImageListener.onError(new Exception());
+    BatchImageFuture batch = new BatchImageFuture(Arrays.asList(done, new ImageFuture()));
+
+    batch.get(10, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void cancelCancelsPendingImages() {
+    ImageFuture done = new ImageFuture();
+    done.mImageListener.onError(new Exception());
+    ImageFuture pending = new ImageFuture();
+    BatchImageFuture batch = new BatchImageFuture(Arrays.asList(done, pending));
+
+    assertTrue(batch.cancel(false));
+
+    assertTrue(pending.isCancelled());
+    assertFalse(done.isCancelled());
+    assertTrue(batch.isCancelled());
+    assertTrue(batch.isDone());
+  }
+}
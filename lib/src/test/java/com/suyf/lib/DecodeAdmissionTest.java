@@ -0,0 +1,121 @@
+package com.suyf.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+public class DecodeAdmissionTest {
+
+  @Test
+  public void admitsDecodesThatFitTogether() throws InterruptedException {
+    DecodeAdmission admission = new DecodeAdmission(100);
+
+    admission.acquire(40);
+    admission.acquire(40);
+
+    assertEquals(2, admission.getRunningCount());
+    assertEquals(80, admission.getBytesInUse());
+  }
+
+  @Test
+  public void admitsDecodeLargerThanBudgetWhenIdle() throws InterruptedException {
+    DecodeAdmission admission = new DecodeAdmission(100);
+
+    admission.acquire(500);
+
+    assertEquals(1, admission.getRunningCount());
+  }
+
+  @Test
+  public void decodeOverBudgetWaitsForRelease() throws InterruptedException {
+    DecodeAdmission admission = new DecodeAdmission(100);
+    admission.acquire(60);
+
+    CountDownLatch admitted = acquireAsync(admission, 60);
+    awaitWaiting(admission, 1);
+    assertFalse(admitted.await(50, TimeUnit.MILLISECONDS));
+
+    admission.release(60);
+
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+    assertEquals(60, admission.getBytesInUse());
+  }
+
+  @Test
+  public void smallDecodeDoesNotOvertakeWaitingLargeOne() throws InterruptedException {
+    DecodeAdmission admission = new DecodeAdmission(100);
+    admission.acquire(80);
+    CountDownLatch large = acquireAsync(admission, 50);
+    awaitWaiting(admission, 1);
+
+    // Fits next to the running decode, but arrived after the large one.
+    CountDownLatch small = acquireAsync(admission, 10);
+    awaitWaiting(admission, 2);
+    assertFalse(small.await(50, TimeUnit.MILLISECONDS));
+
+    admission.release(80);
+
+    assertTrue(large.await(5, TimeUnit.SECONDS));
+    assertTrue(small.await(5, TimeUnit.SECONDS));
+    assertEquals(60, admission.getBytesInUse());
+  }
+
+  @Test
+  public void interruptedWaiterLeavesQueue() throws InterruptedException {
+    final DecodeAdmission admission = new DecodeAdmission(100);
+    admission.acquire(80);
+    final AtomicBoolean interrupted = new AtomicBoolean();
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          admission.acquire(50);
+        } catch (InterruptedException e) {
+          interrupted.set(true);
+        }
+      }
+    });
+    thread.start();
+    awaitWaiting(admission, 1);
+
+    thread.interrupt();
+    thread.join(5000);
+
+    assertTrue(interrupted.get());
+    assertEquals(0, admission.getWaitingCount());
+    // The queue is not blocked by the waiter that gave up.
+    assertTrue(acquireAsync(admission, 10).await(5, TimeUnit.SECONDS));
+  }
+
+  private static CountDownLatch acquireAsync(final DecodeAdmission admission, final long bytes) {
+    final CountDownLatch admitted = new CountDownLatch(1);
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          admission.acquire(bytes);
+          admitted.countDown();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+    return admitted;
+  }
+
+  private static void awaitWaiting(DecodeAdmission admission, int count)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (admission.getWaitingCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(count, admission.getWaitingCount());
+  }
+}
@@ -0,0 +1,144 @@
+package com.suyf.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskLruCacheTest {
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private File mDirectory;
+
+  @Before
+  public void setUp() throws IOException {
+    mDirectory = mFolder.newFolder("cache");
+  }
+
+  @Test
+  public void commitPublishesValue() throws IOException {
+    DiskLruCache cache = new DiskLruCache(mDirectory, 1024);
+    DiskLruCache.Editor editor = cache.edit("a");
+    write(editor, "abc");
+    assertNull(cache.get("a"));
+
+    File file = editor.commit();
+
+    assertNotNull(file);
+    assertEquals("abc", read(cache.get("a")));
+    assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void abortDiscardsValueAndTempFile() throws IOException {
+    DiskLruCache cache = new DiskLruCache(mDirectory, 1024);
+    DiskLruCache.Editor editor = cache.edit("a");
+    write(editor, "abc");
+
+    editor.abort();
+
+    assertNull(cache.get("a"));
+    assertFalse(editor.getFile().exists());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void abortKeepsPreviousValue() throws IOException {
+    DiskLruCache cache = new DiskLruCache(mDirectory, 1024);
+    assertTrue(cache.put("a", "old".getBytes()));
+    DiskLruCache.Editor editor = cache.edit("a");
+    write(editor, "new value");
+
+    editor.abort();
+
+    assertEquals("old", read(cache.get("a")));
+  }
+
+  @Test
+  public void journalIsReplayedOnOpen() throws IOException {
+    DiskLruCache cache = new DiskLruCache(mDirectory, 1024);
+    cache.put("a", "aaaa".getBytes());
+    cache.put("b", "bb".getBytes());
+    cache.remove("a");
+
+    DiskLruCache reopened = new DiskLruCache(mDirectory, 1024);
+
+    assertNull(reopened.get("a"));
+    assertEquals("bb", read(reopened.get("b")));
+    assertEquals(2, reopened.size());
+  }
+
+  @Test
+  public void replayDropsEntriesWhoseFileIsGone() throws IOException {
+    DiskLruCache cache = new DiskLruCache(mDirectory, 1024);
+    cache.put("a", "aaaa".getBytes());
+    cache.put("b", "bb".getBytes());
+    assertTrue(cache.get("a").delete());
+
+    DiskLruCache reopened = new DiskLruCache(mDirectory, 1024);
+
+    assertNull(reopened.get("a"));
+    assertNotNull(reopened.get("b"));
+    assertEquals(2, reopened.size());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedOverBudget() throws Exception {
+    DiskLruCache cache = new DiskLruCache(mDirectory, 10);
+    cache.put("a", "aaaa".getBytes());
+    cache.put("b", "bbbb".getBytes());
+    // Makes b the least recently used.
+    cache.get("a");
+
+    cache.put("c", "cccc".getBytes());
+
+    awaitSizeAtMost(cache, 10);
+    assertFalse(cache.contains("b"));
+    assertTrue(cache.contains("a"));
+    assertTrue(cache.contains("c"));
+    assertEquals(8, cache.size());
+  }
+
+  private static void awaitSizeAtMost(DiskLruCache cache, long size) throws InterruptedException {
+    // Eviction runs on the cleanup thread of the cache.
+    long deadline = System.currentTimeMillis() + 5000;
+    while (cache.size() > size && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static void write(DiskLruCache.Editor editor, String value) throws IOException {
+    OutputStream outputStream = editor.newOutputStream();
+    try {
+      outputStream.write(value.getBytes());
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  private static String read(File file) throws IOException {
+    FileInputStream inputStream = new FileInputStream(file);
+    try {
+      byte[] bytes = new byte[(int) file.length()];
+      int length = 0;
+      while (length < bytes.length) {
+        length += inputStream.read(bytes, length, bytes.length - length);
+      }
+      return new String(bytes);
+    } finally {
+      inputStream.close();
+    }
+  }
+}
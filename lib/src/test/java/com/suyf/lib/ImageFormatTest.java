@@ -0,0 +1,90 @@
+package com.suyf.lib;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ImageFormatTest {
+
+  @Test
+  public void sniffsJpeg() {
+    assertEquals(ImageFormat.JPEG, sniff(0xFF, 0xD8, 0xFF, 0xE0, 0x00, 0x10, 'J', 'F', 'I', 'F'));
+  }
+
+  @Test
+  public void sniffsPng() {
+    assertEquals(ImageFormat.PNG, sniff(0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 0, 0, 0, 13));
+  }
+
+  @Test
+  public void sniffsBothGifVersions() {
+    assertEquals(ImageFormat.GIF, sniff('G', 'I', 'F', '8', '7', 'a', 1, 0, 1, 0));
+    assertEquals(ImageFormat.GIF, sniff('G', 'I', 'F', '8', '9', 'a', 1, 0, 1, 0));
+  }
+
+  @Test
+  public void sniffsSimpleWebp() {
+    assertEquals(ImageFormat.WEBP, sniff(webp("VP8 ", 0)));
+  }
+
+  @Test
+  public void sniffsExtendedWebpWithoutAnimation() {
+    // Alpha flag only.
+    assertEquals(ImageFormat.WEBP, sniff(webp("VP8X", 0x10)));
+  }
+
+  @Test
+  public void sniffsAnimatedWebpFromVp8xFlag() {
+    assertEquals(ImageFormat.ANIMATED_WEBP, sniff(webp("VP8X", 0x02)));
+    assertEquals(ImageFormat.ANIMATED_WEBP, sniff(webp("VP8X", 0x12)));
+  }
+
+  @Test
+  public void animationFlagBeyondLengthIsIgnored() {
+    byte[] header = webp("VP8X", 0x02);
+
+    assertEquals(ImageFormat.WEBP, ImageFormat.sniff(header, 20));
+  }
+
+  @Test
+  public void truncatedHeadersAreUnknown() {
+    assertEquals(ImageFormat.UNKNOWN, ImageFormat.sniff(new byte[]{(byte) 0xFF, (byte) 0xD8}, 2));
+    assertEquals(ImageFormat.UNKNOWN, sniff('G', 'I', 'F', '8', '9'));
+    assertEquals(ImageFormat.UNKNOWN, ImageFormat.sniff(new byte[0], 0));
+  }
+
+  @Test
+  public void riffWithoutWebpIsUnknown() {
+    assertEquals(ImageFormat.UNKNOWN, sniff('R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'A', 'V', 'E'));
+  }
+
+  @Test
+  public void otherBytesAreUnknown() {
+    assertEquals(ImageFormat.UNKNOWN, sniff('<', 'h', 't', 'm', 'l', '>'));
+  }
+
+  /**
+   * Returns the first {@link ImageFormat#HEADER_LENGTH} bytes of a WebP file.
+   */
+  private static byte[] webp(String chunk, int flags) {
+    byte[] header = new byte[ImageFormat.HEADER_LENGTH];
+    System.arraycopy("RIFF".getBytes(), 0, header, 0, 4);
+    System.arraycopy("WEBP".getBytes(), 0, header, 8, 4);
+    System.arraycopy(chunk.getBytes(), 0, header, 12, 4);
+    header[16] = 10;
+    header[20] = (byte) flags;
+    return header;
+  }
+
+  private static ImageFormat sniff(int... bytes) {
+    byte[] header = new byte[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      header[i] = (byte) bytes[i];
+    }
+    return sniff(header);
+  }
+
+  private static ImageFormat sniff(byte[] header) {
+    return ImageFormat.sniff(header, header.length);
+  }
+}
@@ -0,0 +1,169 @@
+package com.suyf.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.Drawable;
+import com.suyf.lib.ImageLoader.ImageContainer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class ImageFutureTest {
+
+  private final ImageLoader mImageLoader = new ImageLoader(null, null);
+
+  @Test
+  public void getReturnsDeliveredImage() throws Exception {
+    ImageFuture future = new ImageFuture();
+    ImageContainer container = newContainer(new TestDrawable());
+
+    future.mImageListener.onDrawable(container, false);
+
+    assertTrue(future.isDone());
+    assertSame(container, future.get());
+    assertSame(container, future.get(1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void placeholderDoesNotComplete() {
+    ImageFuture future = new ImageFuture();
+
+    future.mImageListener.onResponse(newContainer(null), true);
+
+    assertFalse(future.isDone());
+  }
+
+  @Test
+  public void errorFailsGet() throws InterruptedException {
+    ImageFuture future = new ImageFuture();
+    Exception error = new Exception("parse bitmap fail");
+
+    future.mImageListener.onError(error);
+
+    try {
+      future.get();
+      fail();
+    } catch (ExecutionException e) {
+      assertSame(error, e.getCause());
+    }
+  }
+
+  @Test(expected = TimeoutException.class)
+  public void getTimesOut() throws Exception {
+    new ImageFuture().get(10, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void cancelIgnoresLaterResponse() throws Exception {
+    ImageFuture future = new ImageFuture();
+
+    assertTrue(future.cancel(false));
+    future.mImageListener.onDrawable(newContainer(new TestDrawable()), false);
+
+    assertTrue(future.isDone());
+    assertTrue(future.isCancelled());
+    assertFalse(future.cancel(false));
+    try {
+      future.get();
+      fail();
+    } catch (CancellationException expected) {
+    }
+  }
+
+  @Test
+  public void cancelAfterDoneFails() {
+    ImageFuture future = new ImageFuture();
+    future.mImageListener.onError(new Exception());
+
+    assertFalse(future.cancel(false));
+    assertFalse(future.isCancelled());
+  }
+
+  @Test
+  public void releaseCancelsPendingLoad() {
+    ImageFuture future = new ImageFuture();
+    future.setRequestContainer(newContainer(null));
+
+    future.release();
+
+    assertTrue(future.isCancelled());
+  }
+
+  @Test
+  public void listenersRunOnExecutorOnceDone() {
+    ImageFuture future = new ImageFuture();
+    RecordingExecutor executor = new RecordingExecutor();
+    AtomicInteger calls = new AtomicInteger();
+    future.addListener(new CountingRunnable(calls), executor);
+    assertEquals(0, calls.get());
+
+    future.mImageListener.onError(new Exception());
+    future.addListener(new CountingRunnable(calls), executor);
+
+    assertEquals(2, calls.get());
+    assertEquals(2, executor.mCommands.size());
+  }
+
+  private ImageContainer newContainer(Drawable drawable) {
+    return mImageLoader.new ImageContainer(drawable, null, "http://example.com/a.gif",
+        /* cacheKey= */ null, /* listener= */ null);
+  }
+
+  static class TestDrawable extends Drawable {
+
+    @Override
+    public void draw(Canvas canvas) {
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+    }
+
+    @Override
+    public int getOpacity() {
+      return PixelFormat.TRANSLUCENT;
+    }
+  }
+
+  static class CountingRunnable implements Runnable {
+
+    private final AtomicInteger mCalls;
+
+    CountingRunnable(AtomicInteger calls) {
+      mCalls = calls;
+    }
+
+    @Override
+    public void run() {
+      mCalls.incrementAndGet();
+    }
+  }
+
+  static class RecordingExecutor implements Executor {
+
+    final List<Runnable> mCommands = new ArrayList<>();
+
+    @Override
+    public void execute(Runnable command) {
+      mCommands.add(command);
+      command.run();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package com.suyf.lib;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void recordsIntoExponentialBuckets() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    histogram.record(0);
+    histogram.record(1);
+    histogram.record(2);
+    histogram.record(3);
+    histogram.record(4);
+
+    assertEquals(1, histogram.getCount(0));
+    assertEquals(1, histogram.getCount(1));
+    assertEquals(2, histogram.getCount(2));
+    assertEquals(1, histogram.getCount(3));
+    assertEquals(5, histogram.getTotalCount());
+  }
+
+  @Test
+  public void recordsSlowDurationsIntoLastBucket() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    int last = histogram.getBucketCount() - 1;
+
+    histogram.record(histogram.getUpperBoundMs(last - 1) - 1);
+    histogram.record(histogram.getUpperBoundMs(last - 1));
+    histogram.record(Long.MAX_VALUE);
+
+    assertEquals(1, histogram.getCount(last - 1));
+    assertEquals(2, histogram.getCount(last));
+    assertEquals(Long.MAX_VALUE, histogram.getUpperBoundMs(last));
+  }
+
+  @Test
+  public void percentileReturnsUpperBoundOfBucket() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 90; i++) {
+      histogram.record(5);
+    }
+    for (int i = 0; i < 10; i++) {
+      histogram.record(100);
+    }
+
+    assertEquals(8, histogram.getPercentileMs(50));
+    assertEquals(8, histogram.getPercentileMs(90));
+    assertEquals(128, histogram.getPercentileMs(91));
+    assertEquals(128, histogram.getPercentileMs(100));
+  }
+
+  @Test
+  public void percentileOfEmptyHistogramIsZero() {
+    assertEquals(0, new LatencyHistogram().getPercentileMs(99));
+  }
+
+  @Test
+  public void resetClearsCounts() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(10);
+
+    histogram.reset();
+
+    assertEquals(0, histogram.getTotalCount());
+    assertEquals(0, histogram.getPercentileMs(50));
+  }
+
+  @Test
+  public void concurrentRecordsAreAllCounted() throws InterruptedException {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            histogram.record(j % 20);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(40000, histogram.getTotalCount());
+  }
+}
@@ -0,0 +1,156 @@
+package com.suyf.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.suyf.lib.PriorityExecutor.OverflowPolicy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PriorityExecutorTest {
+
+  private PriorityExecutor mExecutor;
+  private CountDownLatch mBlockerStarted;
+  private CountDownLatch mReleaseBlocker;
+  private final List<String> mRan = Collections.synchronizedList(new ArrayList<String>());
+  private final List<String> mDropped = Collections.synchronizedList(new ArrayList<String>());
+
+  @Before
+  public void setUp() throws InterruptedException {
+    mExecutor = new PriorityExecutor(1, 16, Executors.defaultThreadFactory());
+    // Occupies the only thread, so that the tasks under test wait in the queue.
+    mBlockerStarted = new CountDownLatch(1);
+    mReleaseBlocker = new CountDownLatch(1);
+    mExecutor.execute(new PriorityTask(Priority.IMMEDIATE) {
+      @Override
+      public void run() {
+        mBlockerStarted.countDown();
+        try {
+          mReleaseBlocker.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    assertTrue(mBlockerStarted.await(5, TimeUnit.SECONDS));
+  }
+
+  @After
+  public void tearDown() {
+    mReleaseBlocker.countDown();
+    mExecutor.shutdownNow();
+  }
+
+  @Test
+  public void runsByPriorityThenNewestFirst() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(4);
+    mExecutor.execute(new RecordingTask("a", Priority.BACKGROUND, done));
+    mExecutor.execute(new RecordingTask("b", Priority.VISIBLE, done));
+    mExecutor.execute(new RecordingTask("c", Priority.VISIBLE, done));
+    mExecutor.execute(new RecordingTask("d", Priority.PREFETCH, done));
+
+    mReleaseBlocker.countDown();
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("c", "b", "d", "a"), mRan);
+  }
+
+  @Test
+  public void setPriorityMovesQueuedTask() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(2);
+    RecordingTask a = new RecordingTask("a", Priority.BACKGROUND, done);
+    mExecutor.execute(a);
+    mExecutor.execute(new RecordingTask("b", Priority.VISIBLE, done));
+
+    a.setPriority(Priority.IMMEDIATE);
+    mReleaseBlocker.countDown();
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("a", "b"), mRan);
+    assertEquals(0, mExecutor.getRejectedCount());
+  }
+
+  @Test
+  public void shedsLowestPriorityWhenFull() throws InterruptedException {
+    mExecutor.setMaxQueued(2);
+    CountDownLatch done = new CountDownLatch(2);
+    mExecutor.execute(new RecordingTask("a", Priority.BACKGROUND, done));
+    mExecutor.execute(new RecordingTask("b", Priority.VISIBLE, done));
+
+    mExecutor.execute(new RecordingTask("c", Priority.VISIBLE, done));
+    // Nothing queued is less urgent than it, so it is dropped itself.
+    mExecutor.execute(new RecordingTask("d", Priority.PREFETCH, done));
+    mReleaseBlocker.countDown();
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("a", "d"), mDropped);
+    assertEquals(Arrays.asList("c", "b"), mRan);
+    assertEquals(2, mExecutor.getRejectedCount());
+  }
+
+  @Test
+  public void dropNewestDropsIncomingTask() throws InterruptedException {
+    mExecutor.setMaxQueued(1);
+    mExecutor.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+    CountDownLatch done = new CountDownLatch(1);
+    mExecutor.execute(new RecordingTask("a", Priority.BACKGROUND, done));
+
+    mExecutor.execute(new RecordingTask("b", Priority.IMMEDIATE, done));
+    mReleaseBlocker.countDown();
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("b"), mDropped);
+    assertEquals(Arrays.asList("a"), mRan);
+    assertEquals(1, mExecutor.getRejectedCount());
+  }
+
+  @Test
+  public void dequeueRemovesQueuedTask() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(1);
+    RecordingTask a = new RecordingTask("a", Priority.VISIBLE, done);
+    mExecutor.execute(a);
+    mExecutor.execute(new RecordingTask("b", Priority.VISIBLE, done));
+
+    assertTrue(a.dequeue());
+    mReleaseBlocker.countDown();
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    mExecutor.shutdown();
+    assertTrue(mExecutor.awaitTermination(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("b"), mRan);
+    assertEquals(1, mExecutor.getCanceledCount());
+    assertFalse(a.dequeue());
+  }
+
+  private class RecordingTask extends PriorityTask {
+
+    private final String mName;
+    private final CountDownLatch mDone;
+
+    RecordingTask(String name, Priority priority, CountDownLatch done) {
+      super(priority);
+      mName = name;
+      mDone = done;
+    }
+
+    @Override
+    public void run() {
+      mRan.add(mName);
+      mDone.countDown();
+    }
+
+    @Override
+    protected void onDropped() {
+      mDropped.add(mName);
+    }
+  }
+}
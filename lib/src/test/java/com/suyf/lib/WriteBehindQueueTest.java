@@ -0,0 +1,102 @@
+package com.suyf.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteBehindQueueTest {
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private DiskLruCache mCache;
+
+  @Before
+  public void setUp() throws IOException {
+    mCache = new DiskLruCache(mFolder.newFolder("cache"), 1024);
+  }
+
+  @Test
+  public void commitsInBackground() throws Exception {
+    WriteBehindQueue queue = new WriteBehindQueue(4);
+
+    queue.enqueue("a", edit("a", "abc"));
+
+    awaitWritten(queue, 1);
+    assertNotNull(mCache.get("a"));
+    assertEquals(0, queue.getDroppedCount());
+  }
+
+  @Test
+  public void newerCommitReplacesPendingOne() throws Exception {
+    WriteBehindQueue queue = new WriteBehindQueue(4);
+    DiskLruCache.Editor older;
+    synchronized (mCache) {
+      // Commits lock the cache, the drain thread waits in the first one.
+      queue.enqueue("busy", edit("busy", "x"));
+      awaitPending(queue, 0);
+      older = edit("a", "old");
+      queue.enqueue("a", older);
+      queue.enqueue("a", edit("a", "new"));
+      assertEquals(1, queue.getPendingCount());
+    }
+
+    awaitWritten(queue, 2);
+    assertEquals(1, queue.getDroppedCount());
+    assertFalse(older.getFile().exists());
+    assertEquals(3, mCache.get("a").length());
+  }
+
+  @Test
+  public void overflowDropsOldest() throws Exception {
+    WriteBehindQueue queue = new WriteBehindQueue(1);
+    DiskLruCache.Editor oldest;
+    synchronized (mCache) {
+      queue.enqueue("busy", edit("busy", "x"));
+      awaitPending(queue, 0);
+      oldest = edit("a", "a");
+      queue.enqueue("a", oldest);
+      queue.enqueue("b", edit("b", "b"));
+    }
+
+    awaitWritten(queue, 2);
+    assertEquals(1, queue.getDroppedCount());
+    assertFalse(oldest.getFile().exists());
+    assertNull(mCache.get("a"));
+    assertNotNull(mCache.get("b"));
+  }
+
+  private DiskLruCache.Editor edit(String key, String value) throws IOException {
+    DiskLruCache.Editor editor = mCache.edit(key);
+    OutputStream outputStream = editor.newOutputStream();
+    try {
+      outputStream.write(value.getBytes());
+    } finally {
+      outputStream.close();
+    }
+    return editor;
+  }
+
+  private static void awaitPending(WriteBehindQueue queue, int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (queue.getPendingCount() != count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static void awaitWritten(WriteBehindQueue queue, int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (queue.getWrittenCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, queue.getWrittenCount());
+  }
+}